@@ -0,0 +1,104 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sunnycode.huff.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sunnycode.huff.io.BitInput;
+import org.sunnycode.huff.io.BitOutput;
+
+/**
+ * Raw bit I/O: {@link BitOutput#writeBits(long, int)} and
+ * {@link BitInput#peek(int)}/{@link BitInput#advance(int)} over code-like
+ * lengths of 1 to 24 bits.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BitIoBenchmark {
+    private static final int CODES = 4096;
+    private static final int MAX_BITS = 24;
+
+    private final long[] values = new long[CODES];
+    private final int[] lengths = new int[CODES];
+    private BitOutput out;
+    private BitInput in;
+    private byte[] written;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+
+        for (int i = 0; i < CODES; i++) {
+            lengths[i] = 1 + random.nextInt(MAX_BITS);
+            values[i] = random.nextLong() & ((1L << lengths[i]) - 1);
+        }
+
+        out = new BitOutput(CODES * MAX_BITS / 8 + 16);
+
+        for (int i = 0; i < CODES; i++) {
+            out.writeBits(values[i], lengths[i]);
+        }
+
+        written = out.finish();
+        in = new BitInput();
+    }
+
+    @Benchmark
+    public byte[] writeBits(ByteCounter counter) {
+        out.reset();
+
+        for (int i = 0; i < CODES; i++) {
+            out.writeBits(values[i], lengths[i]);
+        }
+
+        counter.bytes += written.length;
+
+        return out.finish();
+    }
+
+    @Benchmark
+    public long peek(ByteCounter counter) {
+        long sum = 0;
+
+        in.reset(written, 0, written.length);
+
+        for (int i = 0; i < CODES; i++) {
+            sum += in.peek(MAX_BITS);
+            in.advance(lengths[i]);
+        }
+
+        counter.bytes += written.length;
+
+        return sum;
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sunnycode.huff.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sunnycode.huff.HuffmanCodec;
+import org.sunnycode.huff.RecordBatch;
+import org.sunnycode.huff.model.TextModel;
+
+/**
+ * Encode and decode throughput of {@link HuffmanCodec} by model context,
+ * record size and corpus. The model is trained on the corpus being coded.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    private static final int MAX_RECORDS = 64;
+
+    @Param({ "1", "2", "3" })
+    public int context;
+
+    @Param({ "32", "1024", "65536", "1048576" })
+    public int recordSize;
+
+    @Param({ Corpora.FILELISTING, Corpora.RANDOM, Corpora.WORDS })
+    public String corpus;
+
+    private TextModel model;
+    private byte[][] records;
+    private byte[][] encoded;
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        byte[] data = Corpora.load(corpus, Math.max(1 << 20, recordSize));
+        int count = Math.max(1, Math.min(MAX_RECORDS, data.length / recordSize));
+
+        model = Corpora.train(data, context);
+        records = new byte[count][];
+        encoded = new byte[count][];
+
+        for (int i = 0; i < count; i++) {
+            int off = (int) ((long) i * (data.length - recordSize) / count);
+
+            records[i] = new byte[recordSize];
+            System.arraycopy(data, off, records[i], 0, recordSize);
+            encoded[i] = HuffmanCodec.encode(records[i], model);
+        }
+    }
+
+    @Benchmark
+    public byte[] encode(ByteCounter counter) {
+        byte[] record = records[next];
+        next = (next + 1) % records.length;
+        counter.bytes += record.length;
+
+        return HuffmanCodec.encode(record, model);
+    }
+
+    @Benchmark
+    public byte[] encodeOptimal(ByteCounter counter) {
+        byte[] record = records[next];
+        next = (next + 1) % records.length;
+        counter.bytes += record.length;
+
+        return HuffmanCodec.encodeOptimal(record, model);
+    }
+
+    @Benchmark
+    public RecordBatch encodeBatch(ByteCounter counter) {
+        counter.bytes += (long) records.length * recordSize;
+
+        return HuffmanCodec.encodeBatch(records, model);
+    }
+
+    @Benchmark
+    public byte[] decode(ByteCounter counter) {
+        byte[] record = encoded[next];
+        next = (next + 1) % encoded.length;
+        counter.bytes += recordSize;
+
+        return HuffmanCodec.decode(record, model);
+    }
+}
@@ -0,0 +1,164 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sunnycode.huff.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import org.sunnycode.huff.model.TextModel;
+
+/**
+ * Benchmark inputs: the checked-in file listing, uniformly random printable
+ * text, and Zipf-distributed words in log-like lines.
+ */
+public class Corpora {
+    public static final String FILELISTING = "filelisting";
+    public static final String RANDOM = "random";
+    public static final String WORDS = "words";
+
+    private Corpora() {
+    }
+
+    /**
+     * @return at least {@code minSize} bytes of the named corpus
+     */
+    public static byte[] load(String name, int minSize) throws IOException {
+        byte[] base;
+
+        if (FILELISTING.equals(name)) {
+            base = resource("/filelisting.txt");
+        } else if (RANDOM.equals(name)) {
+            base = random(minSize, new Random(42));
+        } else if (WORDS.equals(name)) {
+            base = words(minSize, new Random(42));
+        } else {
+            throw new IllegalArgumentException("Error: unknown corpus " + name
+                    + "!");
+        }
+
+        return repeat(base, minSize);
+    }
+
+    public static TextModel train(byte[] data, int context) {
+        TextModel.Builder b = new TextModel.Builder(context);
+
+        for (byte x : data) {
+            b.scan(x & 0xFF);
+        }
+
+        return b.build();
+    }
+
+    private static byte[] resource(String path) throws IOException {
+        InputStream in = Corpora.class.getResourceAsStream(path);
+
+        if (in == null) {
+            throw new IOException("Error: missing resource " + path + "!");
+        }
+
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int n;
+
+            while ((n = in.read(buf)) >= 0) {
+                out.write(buf, 0, n);
+            }
+
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] random(int size, Random random) {
+        byte[] data = new byte[size];
+
+        for (int i = 0; i < size; i++) {
+            data[i] = (i % 80 == 79) ? (byte) '\n'
+                    : (byte) (32 + random.nextInt(95));
+        }
+
+        return data;
+    }
+
+    private static byte[] words(int size, Random random) {
+        String[] vocabulary = new String[2000];
+
+        for (int i = 0; i < vocabulary.length; i++) {
+            StringBuilder word = new StringBuilder();
+            int len = 2 + random.nextInt(9);
+
+            for (int j = 0; j < len; j++) {
+                word.append((char) ('a' + random.nextInt(26)));
+            }
+
+            vocabulary[i] = word.toString();
+        }
+
+        double[] cumulative = new double[vocabulary.length];
+        double total = 0;
+
+        for (int i = 0; i < vocabulary.length; i++) {
+            total += 1.0 / (i + 1);
+            cumulative[i] = total;
+        }
+
+        StringBuilder text = new StringBuilder(size + 64);
+
+        while (text.length() < size) {
+            text.append("2012-06-0").append(random.nextInt(10)).append(" INFO ");
+
+            for (int w = 4 + random.nextInt(12); w > 0; w--) {
+                double p = random.nextDouble() * total;
+                int lo = 0;
+                int hi = cumulative.length - 1;
+
+                while (lo < hi) {
+                    int mid = (lo + hi) >>> 1;
+
+                    if (cumulative[mid] < p) {
+                        lo = mid + 1;
+                    } else {
+                        hi = mid;
+                    }
+                }
+
+                text.append(vocabulary[lo]).append(w > 1 ? ' ' : '\n');
+            }
+        }
+
+        return text.toString().getBytes();
+    }
+
+    private static byte[] repeat(byte[] base, int minSize) {
+        if (base.length >= minSize) {
+            return base;
+        }
+
+        byte[] data = new byte[minSize];
+
+        for (int i = 0; i < minSize; i += base.length) {
+            System.arraycopy(base, 0, data, i, Math.min(base.length, minSize - i));
+        }
+
+        return data;
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sunnycode.huff.benchmarks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sunnycode.huff.model.TextModel;
+
+/**
+ * Training throughput over 1 MB of input, byte by byte with
+ * {@link TextModel.Builder#scan(int)} and in bulk from an array or a direct
+ * buffer, and the cost of {@link TextModel.Builder#build()} from the
+ * resulting counts.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ModelBenchmark {
+    @Param({ "1", "2", "3" })
+    public int context;
+
+    @Param({ Corpora.FILELISTING, Corpora.RANDOM, Corpora.WORDS })
+    public String corpus;
+
+    private byte[] data;
+    private ByteBuffer direct;
+    private TextModel.Builder trained;
+
+    @Setup
+    public void setup() throws IOException {
+        data = Corpora.load(corpus, 1 << 20);
+        direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data).flip();
+        trained = new TextModel.Builder(context);
+
+        for (byte x : data) {
+            trained.scan(x & 0xFF);
+        }
+    }
+
+    @Benchmark
+    public TextModel.Builder scan(ByteCounter counter) {
+        TextModel.Builder b = new TextModel.Builder(context);
+
+        for (byte x : data) {
+            b.scan(x & 0xFF);
+        }
+
+        counter.bytes += data.length;
+
+        return b;
+    }
+
+    @Benchmark
+    public TextModel.Builder scanArray(ByteCounter counter) {
+        TextModel.Builder b = new TextModel.Builder(context);
+
+        b.scan(data, 0, data.length);
+        counter.bytes += data.length;
+
+        return b;
+    }
+
+    @Benchmark
+    public TextModel.Builder scanBuffer(ByteCounter counter) {
+        TextModel.Builder b = new TextModel.Builder(context);
+
+        b.scan(direct.duplicate());
+        counter.bytes += data.length;
+
+        return b;
+    }
+
+    @Benchmark
+    public TextModel build() {
+        return trained.build();
+    }
+}
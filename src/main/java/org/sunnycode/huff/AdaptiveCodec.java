@@ -0,0 +1,76 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sunnycode.huff;
+
+import org.sunnycode.huff.model.AdaptiveModel;
+import org.sunnycode.huff.model.TextModel;
+
+/**
+ * One end of an adaptive connection. Records are coded in the standard
+ * format with the current model of an {@link AdaptiveModel}, which is then
+ * updated with the plain record. An encoding end and a decoding end that
+ * start from the same model and see the same records in the same order stay
+ * in lockstep. Not thread-safe; records must be coded in order.
+ */
+public class AdaptiveCodec {
+    private final AdaptiveModel model;
+    private final HuffmanEncoder encoder;
+    private final HuffmanDecoder decoder;
+
+    public AdaptiveCodec(TextModel initial) {
+        this(new AdaptiveModel(initial));
+    }
+
+    public AdaptiveCodec(TextModel initial, int interval) {
+        this(new AdaptiveModel(initial, interval));
+    }
+
+    public AdaptiveCodec(AdaptiveModel model) {
+        this.model = model;
+        this.encoder = new HuffmanEncoder(model.current());
+        this.decoder = new HuffmanDecoder(model.current());
+    }
+
+    public AdaptiveModel getModel() {
+        return model;
+    }
+
+    public byte[] encode(byte[] src) {
+        return encode(src, 0, src.length);
+    }
+
+    public byte[] encode(byte[] src, int off, int len) {
+        byte[] encoded = encoder.bind(model.current()).encode(src, off, len);
+
+        model.update(src, off, len);
+
+        return encoded;
+    }
+
+    public byte[] decode(byte[] src) {
+        return decode(src, 0, src.length);
+    }
+
+    public byte[] decode(byte[] src, int off, int len) {
+        byte[] decoded = decoder.bind(model.current()).decode(src, off, len);
+
+        model.update(decoded, 0, decoded.length);
+
+        return decoded;
+    }
+}
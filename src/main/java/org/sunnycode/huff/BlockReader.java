@@ -0,0 +1,103 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sunnycode.huff;
+
+import org.sunnycode.huff.io.Varint;
+import org.sunnycode.huff.model.TextModel;
+
+/**
+ * Random access to the records of a block written by {@link BlockWriter}.
+ * The index is expanded to absolute bit offsets once, so each lookup seeks
+ * straight to its record.
+ */
+public class BlockReader {
+    private final TextModel model;
+    private final byte[] block;
+    private final int dataOff;
+    private final int dataLen;
+    private final long[] starts;
+
+    public BlockReader(byte[] block, TextModel d) {
+        this(block, 0, block.length, d);
+    }
+
+    public BlockReader(byte[] block, int off, int len, TextModel d) {
+        int end = off + len;
+        long read = index(block, off, end);
+        int count = Varint.value(read);
+        int p = off + Varint.length(read);
+
+        // every record takes at least one byte of index
+        if (count > end - p) {
+            throw new HuffmanEncodingException("Block index is corrupt");
+        }
+
+        this.starts = new long[count + 1];
+
+        for (int i = 0; i < count; i++) {
+            read = index(block, p, end);
+            p += Varint.length(read);
+            starts[i + 1] = starts[i] + Varint.value(read);
+
+            // the data follows the index, so it has at most end - p bytes
+            if (starts[i + 1] > ((long) (end - p) << 3)) {
+                throw new HuffmanEncodingException("Block index is corrupt");
+            }
+        }
+
+        this.model = d;
+        this.block = block;
+        this.dataOff = p;
+        this.dataLen = end - p;
+    }
+
+    private static long index(byte[] block, int off, int end) {
+        long read = Varint.readInt(block, off, end);
+
+        if (read < 0) {
+            throw new HuffmanEncodingException("Block index is corrupt");
+        }
+
+        return read;
+    }
+
+    public int size() {
+        return starts.length - 1;
+    }
+
+    /**
+     * @return the bit offset of record {@code k} within the bitstream
+     */
+    public long bitOffset(int k) {
+        return starts[k];
+    }
+
+    public byte[] get(int k) {
+        if (k < 0 || k >= size()) {
+            throw new IndexOutOfBoundsException("record " + k + " of "
+                    + size());
+        }
+
+        try {
+            return HuffmanDecoder.local(model).decodeAt(block, dataOff,
+                    dataLen, starts[k]);
+        } finally {
+            HuffmanDecoder.releaseLocal();
+        }
+    }
+}
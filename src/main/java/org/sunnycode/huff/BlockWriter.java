@@ -0,0 +1,101 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sunnycode.huff;
+
+import org.sunnycode.huff.io.BitOutput;
+import org.sunnycode.huff.io.Varint;
+import org.sunnycode.huff.model.EncodeTable;
+import org.sunnycode.huff.model.TextModel;
+
+/**
+ * Packs many records into one unpadded bitstream, each record ending with
+ * its EOF symbol, preceded by an index of record bit lengths so that
+ * {@link BlockReader} can decode any record directly.
+ *
+ * A block is a varint record count, a varint bit length per record, and the
+ * bitstream.
+ */
+public class BlockWriter {
+    private final TextModel model;
+    private final EncodeTable table;
+    private final BitOutput out;
+    private long[] lengths;
+    private int count;
+
+    public BlockWriter(TextModel d) {
+        this.model = d;
+        this.table = d.getEncodeTable();
+        this.out = new BitOutput(4096);
+        this.lengths = new long[64];
+    }
+
+    public int add(byte[] record) {
+        return add(record, 0, record.length);
+    }
+
+    /**
+     * @return the index of the added record within the block
+     */
+    public int add(byte[] src, int off, int len) {
+        if (count == lengths.length) {
+            long[] grown = new long[lengths.length * 2];
+            System.arraycopy(lengths, 0, grown, 0, count);
+            lengths = grown;
+        }
+
+        long start = out.bitLength();
+
+        out.ensureRemaining(HuffmanEncoder.maxEncodedLength(model, len) + 8);
+        table.encode(src, off, len, true, out);
+        table.encodeEof(out);
+
+        lengths[count] = out.bitLength() - start;
+
+        return count++;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return the block, after which the writer is empty again
+     */
+    public byte[] finish() {
+        byte[] bits = out.finish();
+        int header = Varint.size(count);
+
+        for (int i = 0; i < count; i++) {
+            header += Varint.size(lengths[i]);
+        }
+
+        byte[] block = new byte[header + bits.length];
+        int p = Varint.write(block, 0, count);
+
+        for (int i = 0; i < count; i++) {
+            p = Varint.write(block, p, lengths[i]);
+        }
+
+        System.arraycopy(bits, 0, block, p, bits.length);
+
+        out.reset();
+        count = 0;
+
+        return block;
+    }
+}
@@ -0,0 +1,40 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sunnycode.huff;
+
+import org.sunnycode.huff.model.TextModel;
+
+/**
+ * Notified of each call through {@link HuffmanCodec}; see
+ * {@link HuffmanCodec#setListener(CodecListener)}. Called on the coding
+ * thread, so implementations must be thread-safe and cheap.
+ */
+public interface CodecListener {
+    /**
+     * @param src
+     *            the input, or null if it was not array-backed
+     */
+    void encoded(TextModel d, byte[] src, int off, int len, int encodedLen,
+            long nanos);
+
+    void decoded(TextModel d, int encodedLen, int decodedLen, long nanos);
+
+    void encodeFailed(TextModel d, RuntimeException e);
+
+    void decodeFailed(TextModel d, RuntimeException e);
+}
@@ -0,0 +1,215 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sunnycode.huff;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.sunnycode.huff.model.ModelListener;
+import org.sunnycode.huff.model.TextModel;
+
+/**
+ * Counters and latency histograms for codec calls and model builds. Install
+ * with {@link HuffmanCodec#setListener(CodecListener)} and
+ * {@link TextModel.Builder#setListener(ModelListener)}.
+ *
+ * Token widths are counted by re-parsing a sample of one in
+ * {@code sampleEvery} encoded records; set it to 1 to count every record.
+ */
+public class CodecMetrics implements CodecListener, ModelListener {
+    public static final int DEFAULT_SAMPLE_EVERY = 16;
+
+    private final int sampleEvery;
+    private final StripedCounter encodes = new StripedCounter();
+    private final StripedCounter encodeIn = new StripedCounter();
+    private final StripedCounter encodeOut = new StripedCounter();
+    private final StripedCounter decodes = new StripedCounter();
+    private final StripedCounter decodeIn = new StripedCounter();
+    private final StripedCounter decodeOut = new StripedCounter();
+    private final StripedCounter encodeFailures = new StripedCounter();
+    private final StripedCounter decodeFailures = new StripedCounter();
+    private final StripedCounter[] tokens = { new StripedCounter(),
+            new StripedCounter(), new StripedCounter(), new StripedCounter() };
+    private final LatencyHistogram encodeLatency = new LatencyHistogram();
+    private final LatencyHistogram decodeLatency = new LatencyHistogram();
+    private final ThreadLocal<long[]> mix = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[4];
+        }
+    };
+
+    private volatile long modelsBuilt;
+    private volatile long lastBuildNanos;
+    private volatile int lastModelSymbols;
+    private volatile int lastModelMaxBits;
+    private volatile long lastModelTableBytes;
+
+    public CodecMetrics() {
+        this(DEFAULT_SAMPLE_EVERY);
+    }
+
+    public CodecMetrics(int sampleEvery) {
+        if (sampleEvery < 1) {
+            throw new IllegalArgumentException("sampleEvery must be positive!");
+        }
+
+        this.sampleEvery = sampleEvery;
+    }
+
+    public void encoded(TextModel d, byte[] src, int off, int len,
+            int encodedLen, long nanos) {
+        encodes.add(1);
+        encodeIn.add(len);
+        encodeOut.add(encodedLen);
+        encodeLatency.record(nanos);
+
+        if (src != null
+                && (sampleEvery == 1 || ThreadLocalRandom.current().nextInt(
+                        sampleEvery) == 0)) {
+            long[] counts = mix.get();
+
+            d.getEncodeTable().countTokens(src, off, len, counts);
+
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] != 0) {
+                    tokens[i].add(counts[i]);
+                    counts[i] = 0;
+                }
+            }
+        }
+    }
+
+    public void decoded(TextModel d, int encodedLen, int decodedLen,
+            long nanos) {
+        decodes.add(1);
+        decodeIn.add(encodedLen);
+        decodeOut.add(decodedLen);
+        decodeLatency.record(nanos);
+    }
+
+    public void encodeFailed(TextModel d, RuntimeException e) {
+        encodeFailures.add(1);
+    }
+
+    public void decodeFailed(TextModel d, RuntimeException e) {
+        decodeFailures.add(1);
+    }
+
+    public synchronized void built(TextModel d, long bytesScanned, long nanos) {
+        modelsBuilt += 1;
+        lastBuildNanos = nanos;
+        lastModelSymbols = d.getDictionary().size();
+        lastModelMaxBits = d.getMaxBits();
+        lastModelTableBytes = d.getTableBytes();
+    }
+
+    public long getEncodes() {
+        return encodes.sum();
+    }
+
+    public long getEncodeBytesIn() {
+        return encodeIn.sum();
+    }
+
+    public long getEncodeBytesOut() {
+        return encodeOut.sum();
+    }
+
+    public long getDecodes() {
+        return decodes.sum();
+    }
+
+    public long getDecodeBytesIn() {
+        return decodeIn.sum();
+    }
+
+    public long getDecodeBytesOut() {
+        return decodeOut.sum();
+    }
+
+    /**
+     * @return encoded bits per input byte over all encodes, or 0 if none
+     */
+    public double getBitsPerByte() {
+        long in = encodeIn.sum();
+
+        return (in == 0) ? 0.0 : 8.0 * encodeOut.sum() / in;
+    }
+
+    /**
+     * @return the sampled count of tokens of {@code width} bytes (1-3), or of
+     *         escaped bytes for width 0
+     */
+    public long getTokens(int width) {
+        return tokens[width].sum();
+    }
+
+    public long getEncodeFailures() {
+        return encodeFailures.sum();
+    }
+
+    public long getDecodeFailures() {
+        return decodeFailures.sum();
+    }
+
+    public LatencyHistogram getEncodeLatency() {
+        return encodeLatency;
+    }
+
+    public LatencyHistogram getDecodeLatency() {
+        return decodeLatency;
+    }
+
+    public long getModelsBuilt() {
+        return modelsBuilt;
+    }
+
+    public long getLastBuildNanos() {
+        return lastBuildNanos;
+    }
+
+    public int getLastModelSymbols() {
+        return lastModelSymbols;
+    }
+
+    public int getLastModelMaxBits() {
+        return lastModelMaxBits;
+    }
+
+    /**
+     * @return the size in bytes of the last built model's encode and decode
+     *         tables
+     */
+    public long getLastModelTableBytes() {
+        return lastModelTableBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "encodes=" + getEncodes() + ",in=" + getEncodeBytesIn()
+                + ",out=" + getEncodeBytesOut() + ",bitsPerByte="
+                + String.format("%.3f", getBitsPerByte()) + ",tokens="
+                + getTokens(1) + "/" + getTokens(2) + "/" + getTokens(3)
+                + ",escaped=" + getTokens(0) + ",encodeFailures="
+                + getEncodeFailures() + ",encodeP99="
+                + encodeLatency.quantile(0.99) + "ns,decodes="
+                + getDecodes() + ",decodeFailures=" + getDecodeFailures()
+                + ",decodeP99=" + decodeLatency.quantile(0.99)
+                + "ns,models=" + getModelsBuilt();
+    }
+}
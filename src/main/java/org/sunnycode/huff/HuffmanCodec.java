@@ -17,111 +17,267 @@
  */
 package org.sunnycode.huff;
 
-import java.io.ByteArrayOutputStream;
-import java.util.Map;
+import java.nio.ByteBuffer;
 
-import org.sunnycode.huff.io.BitInput;
-import org.sunnycode.huff.io.BitOutput;
-import org.sunnycode.huff.model.HuffCode;
 import org.sunnycode.huff.model.TextModel;
 
+/**
+ * Convenience entry points backed by per-thread {@link HuffmanEncoder} and
+ * {@link HuffmanDecoder} sessions.
+ *
+ * A {@link CodecListener} installed with {@link #setListener(CodecListener)}
+ * is told of every call's sizes and latency, and of failures. Every entry
+ * point runs through one timing helper per direction; with no listener the
+ * calls are not timed.
+ */
 public class HuffmanCodec {
-    public static byte[] encode(byte[] toencode, TextModel d) {
-        BitOutput out = new BitOutput(toencode.length * 16);
+    private static volatile CodecListener listener;
 
-        int i = 0;
-        while (i < toencode.length) {
-            if (i + 2 < toencode.length) {
-                int tri = toencode[i + 2];
-                tri <<= 8;
-                tri |= toencode[i + 1];
-                tri <<= 8;
-                tri |= toencode[i];
+    /**
+     * Installs a listener notified of every call, or removes it if
+     * {@code null}.
+     */
+    public static void setListener(CodecListener l) {
+        listener = l;
+    }
 
-                if (d.getDictionary().containsKey(tri)) {
-                    out.writeBits(d.getDictionary().get(tri).getTarget(), d
-                            .getDictionary().get(tri).getTargetNumBits());
+    public static byte[] encode(final byte[] toencode, final TextModel d) {
+        return encode(d, toencode, 0, toencode.length, new Call<byte[]>() {
+            public byte[] run() {
+                return HuffmanEncoder.local(d).encode(toencode);
+            }
+        });
+    }
 
-                    i += 3;
-                    continue;
-                }
+    public static byte[] decode(final byte[] inBytes, final TextModel d) {
+        return decode(d, inBytes.length, new Call<byte[]>() {
+            public byte[] run() {
+                return HuffmanDecoder.local(d).decode(inBytes);
             }
+        });
+    }
 
-            if (i + 1 < toencode.length) {
-                int tri = toencode[i + 1];
-                tri <<= 8;
-                tri |= toencode[i];
+    public static int encode(final byte[] src, final int off, final int len,
+            final byte[] dst, final int dstOff, final TextModel d) {
+        return encode(d, src, off, len, new Call<Integer>() {
+            public Integer run() {
+                return HuffmanEncoder.local(d).encode(src, off, len, dst,
+                        dstOff);
+            }
+        });
+    }
 
-                if (d.getDictionary().containsKey(tri)) {
-                    out.writeBits(d.getDictionary().get(tri).getTarget(), d
-                            .getDictionary().get(tri).getTargetNumBits());
+    public static int encode(final ByteBuffer src, final ByteBuffer dst,
+            final TextModel d) {
+        byte[] array = src.hasArray() ? src.array() : null;
+        int off = src.hasArray() ? src.arrayOffset() + src.position() : 0;
 
-                    i += 2;
-                    continue;
-                }
+        return encode(d, array, off, src.remaining(), new Call<Integer>() {
+            public Integer run() {
+                return HuffmanEncoder.local(d).encode(src, dst);
             }
+        });
+    }
 
-            int tri = toencode[i];
+    public static int decode(final byte[] src, final int off, final int len,
+            final byte[] dst, final int dstOff, final TextModel d) {
+        return decode(d, len, new Call<Integer>() {
+            public Integer run() {
+                return HuffmanDecoder.local(d).decode(src, off, len, dst,
+                        dstOff);
+            }
+        });
+    }
 
-            if (d.getDictionary().containsKey(tri)) {
-                out.writeBits(d.getDictionary().get(tri).getTarget(), d
-                        .getDictionary().get(tri).getTargetNumBits());
+    public static int decode(final ByteBuffer src, final ByteBuffer dst,
+            final TextModel d) {
+        return decode(d, 0, src, new Call<Integer>() {
+            public Integer run() {
+                return HuffmanDecoder.local(d).decode(src, dst);
+            }
+        });
+    }
 
-                i += 1;
-                continue;
+    public static byte[] encodeOptimal(final byte[] toencode,
+            final TextModel d) {
+        return encode(d, null, 0, toencode.length, new Call<byte[]>() {
+            public byte[] run() {
+                return HuffmanEncoder.local(d).encodeOptimal(toencode);
             }
+        });
+    }
 
-            throw new RuntimeException("Character encoding failed! "
-                    + new String(toencode) + " at "
-                    + new String(toencode).substring(i) + " (" + i + ")");
-        }
+    public static RecordBatch encodeBatch(final byte[][] records,
+            final TextModel d) {
+        long len = 0;
 
-        out.writeBits(d.getDictionary().get(TextModel.EOF).getTarget(), d
-                .getDictionary().get(TextModel.EOF).getTargetNumBits());
+        for (byte[] record : records) {
+            len += record.length;
+        }
 
-        return out.finish();
+        return encode(d, null, 0, (int) len, new Call<RecordBatch>() {
+            public RecordBatch run() {
+                return HuffmanEncoder.local(d).encodeBatch(records);
+            }
+        });
     }
 
-    public static byte[] decode(byte[] inBytes, TextModel d) {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        Map<Long, HuffCode> decode = d.getDecode();
-        BitInput in = new BitInput(inBytes);
-        int maxBits = d.getMaxBits();
+    public static RecordBatch encodeBatch(final RecordBatch records,
+            final TextModel d) {
+        return encode(d, null, 0, records.offset(records.size())
+                - records.offset(0), new Call<RecordBatch>() {
+            public RecordBatch run() {
+                return HuffmanEncoder.local(d).encodeBatch(records);
+            }
+        });
+    }
 
-        while (true) {
-            HuffCode matched = matchDecode(in, decode, maxBits);
+    public static RecordBatch decodeBatch(final RecordBatch encoded,
+            final TextModel d) {
+        return decode(d, encoded.offset(encoded.size()) - encoded.offset(0),
+                new Call<RecordBatch>() {
+                    public RecordBatch run() {
+                        return HuffmanDecoder.local(d).decodeBatch(encoded);
+                    }
+                });
+    }
 
-            if (matched == null) {
-                throw new HuffmanEncodingException(
-                        "Huffman decode failed to match token");
+    public static byte[] encodeInterleaved(final byte[] toencode,
+            final TextModel d) {
+        return encode(d, null, 0, toencode.length, new Call<byte[]>() {
+            public byte[] run() {
+                return HuffmanEncoder.local(d).encodeInterleaved(toencode);
             }
+        });
+    }
 
-            in.advance(matched.getTargetNumBits());
+    public static byte[] decodeInterleaved(final byte[] inBytes,
+            final TextModel d) {
+        return decode(d, inBytes.length, new Call<byte[]>() {
+            public byte[] run() {
+                return HuffmanDecoder.local(d).decodeInterleaved(inBytes);
+            }
+        });
+    }
 
-            int sym = matched.getSource();
+    public static byte[] encodeParallel(final byte[] toencode,
+            final TextModel d) {
+        return encode(d, null, 0, toencode.length, new Call<byte[]>() {
+            public byte[] run() {
+                return ParallelCodec.encode(toencode, d);
+            }
+        });
+    }
 
-            if (matched.getSource() == TextModel.EOF) {
-                break;
+    public static byte[] decodeParallel(final byte[] inBytes,
+            final TextModel d) {
+        return decode(d, inBytes.length, new Call<byte[]>() {
+            public byte[] run() {
+                return ParallelCodec.decode(inBytes, d);
             }
+        });
+    }
+
+    /**
+     * Runs {@code call}, reporting {@code len} input bytes at {@code off} of
+     * {@code src} (null if not array-backed) to the listener.
+     */
+    private static <T> T encode(TextModel d, byte[] src, int off, int len,
+            Call<T> call) {
+        CodecListener l = listener;
 
-            while (sym != 0) {
-                baos.write(sym & 0xFF);
-                sym >>= 8;
+        if (l == null) {
+            try {
+                return call.run();
+            } finally {
+                HuffmanEncoder.releaseLocal();
             }
         }
 
-        return baos.toByteArray();
+        long start = System.nanoTime();
+
+        try {
+            T encoded = call.run();
+            l.encoded(d, src, off, len, length(encoded), System.nanoTime()
+                    - start);
+
+            return encoded;
+        } catch (RuntimeException e) {
+            l.encodeFailed(d, e);
+
+            throw e;
+        } finally {
+            HuffmanEncoder.releaseLocal();
+        }
     }
 
-    private static HuffCode matchDecode(BitInput in,
-            Map<Long, HuffCode> decode, int maxBits) {
-        for (int i = 1; i <= maxBits; i++) {
-            long val = ((long) i << 56) | in.peek(i);
-            if (decode.containsKey(val)) {
-                return decode.get(val);
+    /**
+     * Runs {@code call}, reporting {@code encodedLen} input bytes to the
+     * listener.
+     */
+    private static <T> T decode(TextModel d, int encodedLen, Call<T> call) {
+        return decode(d, encodedLen, null, call);
+    }
+
+    /**
+     * Runs {@code call}, reporting {@code encodedLen} input bytes to the
+     * listener, or if {@code src} is given, the bytes the call advanced its
+     * position by.
+     */
+    private static <T> T decode(TextModel d, int encodedLen, ByteBuffer src,
+            Call<T> call) {
+        CodecListener l = listener;
+
+        if (l == null) {
+            try {
+                return call.run();
+            } finally {
+                HuffmanDecoder.releaseLocal();
             }
         }
 
-        return null;
+        int before = (src == null) ? 0 : src.position();
+        long start = System.nanoTime();
+
+        try {
+            T decoded = call.run();
+
+            if (src != null) {
+                encodedLen = src.position() - before;
+            }
+
+            l.decoded(d, encodedLen, length(decoded), System.nanoTime()
+                    - start);
+
+            return decoded;
+        } catch (RuntimeException e) {
+            l.decodeFailed(d, e);
+
+            throw e;
+        } finally {
+            HuffmanDecoder.releaseLocal();
+        }
+    }
+
+    /**
+     * @return the number of bytes in {@code result}: a byte array, a count
+     *         of bytes written or a batch
+     */
+    private static int length(Object result) {
+        if (result instanceof byte[]) {
+            return ((byte[]) result).length;
+        }
+
+        if (result instanceof Integer) {
+            return (Integer) result;
+        }
+
+        RecordBatch batch = (RecordBatch) result;
+
+        return batch.offset(batch.size()) - batch.offset(0);
+    }
+
+    private interface Call<T> {
+        T run();
     }
 }
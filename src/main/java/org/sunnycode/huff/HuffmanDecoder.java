@@ -0,0 +1,437 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sunnycode.huff;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.sunnycode.huff.io.BitInput;
+import org.sunnycode.huff.io.Varint;
+import org.sunnycode.huff.model.DecodeTable;
+import org.sunnycode.huff.model.TextModel;
+
+/**
+ * Reusable decoder session. Input and output buffers are kept between calls
+ * and only grow when a record needs more room. Not thread-safe; use
+ * {@link #local(TextModel)} for a per-thread instance, and
+ * {@link #releaseLocal()} after a call so an idle thread holds neither the
+ * model nor a large buffer.
+ */
+public class HuffmanDecoder {
+    public static final int STREAMS = 4;
+    private static final ThreadLocal<HuffmanDecoder> LOCAL = new ThreadLocal<HuffmanDecoder>();
+    private static final int MAX_RETAINED = 1024 * 1024;
+
+    private final BitInput in;
+    private final BitInput in1;
+    private final BitInput in2;
+    private final BitInput in3;
+    private byte[] decoded;
+    private ByteBuffer outBuf;
+    private TextModel model;
+    private DecodeTable table;
+    private int maxBits;
+
+    public HuffmanDecoder(TextModel d) {
+        this.in = new BitInput();
+        this.in1 = new BitInput();
+        this.in2 = new BitInput();
+        this.in3 = new BitInput();
+        this.decoded = new byte[256];
+        bind(d);
+    }
+
+    /**
+     * @return this thread's decoder, bound to {@code d}
+     */
+    public static HuffmanDecoder local(TextModel d) {
+        HuffmanDecoder decoder = LOCAL.get();
+
+        if (decoder == null) {
+            decoder = new HuffmanDecoder(d);
+            LOCAL.set(decoder);
+        } else if (decoder.model != d) {
+            decoder.bind(d);
+        }
+
+        return decoder;
+    }
+
+    /**
+     * Releases this thread's decoder, if it has one; see {@link #release()}.
+     */
+    public static void releaseLocal() {
+        HuffmanDecoder decoder = LOCAL.get();
+
+        if (decoder != null) {
+            decoder.release();
+        }
+    }
+
+    public HuffmanDecoder bind(TextModel d) {
+        this.model = d;
+        this.table = d.getDecodeTable();
+        this.maxBits = table.getMaxBits();
+
+        return this;
+    }
+
+    /**
+     * Unbinds the model, drops the caller's input and output buffers, and
+     * shrinks the output buffer if it has grown past {@value #MAX_RETAINED}
+     * bytes. The decoder must be bound again before use.
+     */
+    public void release() {
+        this.model = null;
+        this.table = null;
+        this.outBuf = null;
+        this.in.release();
+        this.in1.release();
+        this.in2.release();
+        this.in3.release();
+
+        if (decoded.length > MAX_RETAINED) {
+            decoded = new byte[256];
+        }
+    }
+
+    public TextModel getModel() {
+        return model;
+    }
+
+    public byte[] decode(byte[] src) {
+        return decode(src, 0, src.length);
+    }
+
+    public byte[] decode(byte[] src, int off, int len) {
+        in.reset(src, off, len);
+
+        int n = decodeTo(null, 0, -1);
+
+        byte[] toReturn = new byte[n];
+        System.arraycopy(decoded, 0, toReturn, 0, n);
+
+        return toReturn;
+    }
+
+    /**
+     * Decodes {@code len} bytes of {@code src} into {@code dst} starting at
+     * {@code dstOff}.
+     *
+     * @return the number of bytes written
+     * @throws java.nio.BufferOverflowException
+     *             if {@code dst} is too small
+     */
+    public int decode(byte[] src, int off, int len, byte[] dst, int dstOff) {
+        return decode(src, off, len, dst, dstOff, dst.length - dstOff);
+    }
+
+    /**
+     * Decodes {@code len} bytes of {@code src} into at most {@code dstLen}
+     * bytes of {@code dst} starting at {@code dstOff}.
+     *
+     * @return the number of bytes written
+     * @throws java.nio.BufferOverflowException
+     *             if the record needs more than {@code dstLen} bytes
+     */
+    public int decode(byte[] src, int off, int len, byte[] dst, int dstOff,
+            int dstLen) {
+        in.reset(src, off, len);
+
+        return decodeTo(dst, dstOff, dstOff + dstLen);
+    }
+
+    /**
+     * Decodes the record starting at bit {@code bitOffset} of the
+     * {@code len} bytes of {@code src} at {@code off}, up to its EOF symbol.
+     */
+    public byte[] decodeAt(byte[] src, int off, int len, long bitOffset) {
+        in.reset(src, off, len);
+        in.seek(bitOffset);
+
+        int n = decodeTo(null, 0, -1);
+
+        return Arrays.copyOf(decoded, n);
+    }
+
+    /**
+     * Decodes one record from the remaining bytes of {@code src} into
+     * {@code dst}. The position of {@code src} is advanced past the encoded
+     * record and the position of {@code dst} past the decoded bytes.
+     *
+     * @return the number of bytes written
+     * @throws java.nio.BufferOverflowException
+     *             if {@code dst} is too small
+     */
+    public int decode(ByteBuffer src, ByteBuffer dst) {
+        in.reset(src);
+
+        int written;
+
+        if (dst.hasArray()) {
+            int start = dst.arrayOffset() + dst.position();
+            written = decodeTo(dst.array(), start, dst.arrayOffset()
+                    + dst.limit());
+        } else {
+            this.outBuf = dst;
+            written = decodeTo(null, dst.position(), dst.limit());
+            this.outBuf = null;
+        }
+
+        src.position(src.position() + (int) ((in.position() + 7) >>> 3));
+        dst.position(dst.position() + written);
+
+        return written;
+    }
+
+    public RecordBatch decodeBatch(RecordBatch encoded) {
+        return decodeBatch(encoded.getData(), encoded.getOffsets());
+    }
+
+    /**
+     * Decodes the records {@code src[offsets[i] .. offsets[i + 1])} back to
+     * back into one shared buffer.
+     */
+    public RecordBatch decodeBatch(byte[] src, int[] offsets) {
+        int[] decodedOffsets = new int[offsets.length];
+        int pos = 0;
+
+        for (int i = 0; i + 1 < offsets.length; i++) {
+            in.reset(src, offsets[i], offsets[i + 1] - offsets[i]);
+
+            pos += decodeTo(null, pos, -1);
+            decodedOffsets[i + 1] = pos;
+        }
+
+        return new RecordBatch(Arrays.copyOf(decoded, pos), decodedOffsets);
+    }
+
+    public byte[] decodeInterleaved(byte[] src) {
+        return decodeInterleaved(src, 0, src.length);
+    }
+
+    /**
+     * Decodes the format written by
+     * {@link HuffmanEncoder#encodeInterleaved(byte[], int, int)}, advancing
+     * the four sub-stream cursors together while every segment has room for
+     * a full token, then finishing each segment on its own.
+     */
+    public byte[] decodeInterleaved(byte[] src, int off, int len) {
+        int end = off + len;
+        long read = header(src, off, end);
+        int n = Varint.value(read);
+        int p = off + Varint.length(read);
+        read = header(src, p, end);
+        int l0 = Varint.value(read);
+        p += Varint.length(read);
+        read = header(src, p, end);
+        int l1 = Varint.value(read);
+        p += Varint.length(read);
+        read = header(src, p, end);
+        int l2 = Varint.value(read);
+        p += Varint.length(read);
+        long l3 = (long) end - p - l0 - l1 - l2;
+
+        // every symbol takes at least one bit and yields at most 3 bytes
+        if (l3 < 0 || n > 3L * 8 * (end - p)) {
+            throw new HuffmanEncodingException(
+                    "Interleaved header is corrupt");
+        }
+
+        BitInput in0 = this.in;
+        BitInput in1 = this.in1;
+        BitInput in2 = this.in2;
+        BitInput in3 = this.in3;
+        in0.reset(src, p, l0);
+        in1.reset(src, p + l0, l1);
+        in2.reset(src, p + l0 + l1, l2);
+        in3.reset(src, p + l0 + l1 + l2, (int) l3);
+
+        DecodeTable table = this.table;
+        int maxBits = this.maxBits;
+        byte[] out = new byte[n];
+        int seg = (n + STREAMS - 1) / STREAMS;
+        int e0 = Math.min(seg, n);
+        int e1 = Math.min(2 * seg, n);
+        int e2 = Math.min(3 * seg, n);
+        int e3 = n;
+        int o0 = 0;
+        int o1 = e0;
+        int o2 = e1;
+        int o3 = e2;
+
+        while (o0 <= e0 - 3 && o1 <= e1 - 3 && o2 <= e2 - 3 && o3 <= e3 - 3) {
+            int m0 = table.lookup(in0.peek(maxBits));
+            int m1 = table.lookup(in1.peek(maxBits));
+            int m2 = table.lookup(in2.peek(maxBits));
+            int m3 = table.lookup(in3.peek(maxBits));
+
+            if (m0 == 0 || m1 == 0 || m2 == 0 || m3 == 0) {
+                throw new HuffmanEncodingException(
+                        "Huffman decode failed to match token");
+            }
+
+            in0.advance(DecodeTable.codeLength(m0));
+            in1.advance(DecodeTable.codeLength(m1));
+            in2.advance(DecodeTable.codeLength(m2));
+            in3.advance(DecodeTable.codeLength(m3));
+
+            o0 = put(out, o0, symbol(m0, in0));
+            o1 = put(out, o1, symbol(m1, in1));
+            o2 = put(out, o2, symbol(m2, in2));
+            o3 = put(out, o3, symbol(m3, in3));
+        }
+
+        finishSegment(in0, out, o0, e0);
+        finishSegment(in1, out, o1, e1);
+        finishSegment(in2, out, o2, e2);
+        finishSegment(in3, out, o3, e3);
+
+        return out;
+    }
+
+    private static long header(byte[] src, int off, int end) {
+        long read = Varint.readInt(src, off, end);
+
+        if (read < 0) {
+            throw new HuffmanEncodingException("Interleaved header is corrupt");
+        }
+
+        return read;
+    }
+
+    /**
+     * @return the symbol of {@code matched}, or for {@link TextModel#ESCAPE}
+     *         the literal byte following it in {@code lane}
+     */
+    private static int symbol(int matched, BitInput lane) {
+        int sym = DecodeTable.symbol(matched);
+
+        if (sym != TextModel.ESCAPE) {
+            return sym;
+        }
+
+        if (lane.available() < 8) {
+            throw new HuffmanEncodingException(
+                    "Huffman input truncated in escaped byte");
+        }
+
+        int b = (int) lane.peek(8);
+        lane.advance(8);
+
+        return b;
+    }
+
+    private static int put(byte[] out, int o, int sym) {
+        out[o] = (byte) sym;
+        out[o + 1] = (byte) (sym >>> 8);
+        out[o + 2] = (byte) (sym >>> 16);
+
+        return o + ((sym > 0xFFFF) ? 3 : ((sym > 0xFF) ? 2 : 1));
+    }
+
+    private void finishSegment(BitInput lane, byte[] out, int o, int end) {
+        while (o < end) {
+            int matched = table.lookup(lane.peek(maxBits));
+            if (matched == 0 || DecodeTable.symbol(matched) == TextModel.EOF) {
+                throw new HuffmanEncodingException(
+                        "Huffman decode failed to match token");
+            }
+
+            lane.advance(DecodeTable.codeLength(matched));
+
+            int sym = symbol(matched, lane);
+
+            do {
+                if (o == end) {
+                    throw new HuffmanEncodingException(
+                            "Interleaved segment overruns its length");
+                }
+
+                out[o++] = (byte) sym;
+                sym >>>= 8;
+            } while (sym != 0);
+        }
+
+        if (lane.available() < 0) {
+            throw new HuffmanEncodingException(
+                    "Huffman input truncated before end of segment");
+        }
+    }
+
+    /**
+     * Decodes from {@link #in} into {@code dst}, or into {@link #outBuf} if
+     * {@code dst} is null and {@code end} is non-negative, or else into the
+     * growable {@link #decoded} buffer.
+     */
+    private int decodeTo(byte[] dst, int start, int end) {
+        boolean growable = end < 0;
+        byte[] out = growable ? decoded : dst;
+        int limit = growable ? out.length : end;
+        int n = start;
+
+        while (true) {
+            int matched = table.lookup(in.peek(maxBits));
+
+            if (matched == 0) {
+                throw new HuffmanEncodingException(
+                        "Huffman decode failed to match token");
+            }
+
+            int numBits = DecodeTable.codeLength(matched);
+
+            if (numBits > in.available()) {
+                throw new HuffmanEncodingException(
+                        "Huffman input truncated before EOF");
+            }
+
+            in.advance(numBits);
+
+            if (DecodeTable.symbol(matched) == TextModel.EOF) {
+                break;
+            }
+
+            int sym = symbol(matched, in);
+
+            do {
+                if (n == limit) {
+                    if (!growable) {
+                        throw new BufferOverflowException();
+                    }
+
+                    byte[] grown = new byte[out.length * 2];
+                    System.arraycopy(out, 0, grown, 0, n);
+                    decoded = out = grown;
+                    limit = out.length;
+                }
+
+                if (out != null) {
+                    out[n] = (byte) sym;
+                } else {
+                    outBuf.put(n, (byte) sym);
+                }
+
+                n += 1;
+                sym >>>= 8;
+            } while (sym != 0);
+        }
+
+        return n - start;
+    }
+}
@@ -0,0 +1,340 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sunnycode.huff;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.sunnycode.huff.io.BitOutput;
+import org.sunnycode.huff.io.Varint;
+import org.sunnycode.huff.model.EncodeTable;
+import org.sunnycode.huff.model.TextModel;
+
+/**
+ * Reusable encoder session. The output buffer is kept between calls and only
+ * grows when a record's worst-case encoded size exceeds it. Not thread-safe;
+ * use {@link #local(TextModel)} for a per-thread instance, and
+ * {@link #releaseLocal()} after a call so an idle thread holds neither the
+ * model nor a large buffer.
+ */
+public class HuffmanEncoder {
+    private static final ThreadLocal<HuffmanEncoder> LOCAL = new ThreadLocal<HuffmanEncoder>();
+    private static final int MAX_RETAINED = 1024 * 1024;
+
+    private final BitOutput out;
+    private byte[] scratch;
+    private long[] costs;
+    private TextModel model;
+    private EncodeTable table;
+
+    public HuffmanEncoder(TextModel d) {
+        this.out = new BitOutput(256);
+        this.scratch = new byte[256];
+        this.costs = new long[256];
+        bind(d);
+    }
+
+    /**
+     * @return this thread's encoder, bound to {@code d}
+     */
+    public static HuffmanEncoder local(TextModel d) {
+        HuffmanEncoder encoder = LOCAL.get();
+
+        if (encoder == null) {
+            encoder = new HuffmanEncoder(d);
+            LOCAL.set(encoder);
+        } else if (encoder.model != d) {
+            encoder.bind(d);
+        }
+
+        return encoder;
+    }
+
+    /**
+     * Releases this thread's encoder, if it has one; see {@link #release()}.
+     */
+    public static void releaseLocal() {
+        HuffmanEncoder encoder = LOCAL.get();
+
+        if (encoder != null) {
+            encoder.release();
+        }
+    }
+
+    /**
+     * @return the most bytes {@code len} input bytes can encode to
+     */
+    public static int maxEncodedLength(TextModel d, int len) {
+        long bits = ((long) len + 1) * d.getMaxBitsPerByte();
+
+        return (int) (((bits + 63) >>> 6) << 3);
+    }
+
+    public HuffmanEncoder bind(TextModel d) {
+        this.model = d;
+        this.table = d.getEncodeTable();
+
+        return this;
+    }
+
+    /**
+     * Unbinds the model and drops the caller's output buffer, and shrinks
+     * buffers grown past {@value #MAX_RETAINED} bytes. The encoder must be
+     * bound again before use.
+     */
+    public void release() {
+        this.model = null;
+        this.table = null;
+        this.out.release(MAX_RETAINED);
+
+        if (scratch.length > MAX_RETAINED) {
+            scratch = new byte[256];
+        }
+
+        if (costs.length > MAX_RETAINED / 8) {
+            costs = new long[256];
+        }
+    }
+
+    public TextModel getModel() {
+        return model;
+    }
+
+    public byte[] encode(byte[] src) {
+        return encode(src, 0, src.length);
+    }
+
+    public byte[] encode(byte[] src, int off, int len) {
+        out.reset(maxEncodedLength(model, len));
+
+        table.encode(src, off, len, true, out);
+        table.encodeEof(out);
+
+        return out.finish();
+    }
+
+    public byte[] encodeOptimal(byte[] src) {
+        return encodeOptimal(src, 0, src.length);
+    }
+
+    /**
+     * Encodes in the standard format, choosing the token boundaries that give
+     * the smallest output rather than the greedy longest match. Slower than
+     * {@link #encode(byte[], int, int)}; the output decodes the same way.
+     */
+    public byte[] encodeOptimal(byte[] src, int off, int len) {
+        if (costs.length < len + 1) {
+            costs = new long[Math.max(len + 1, costs.length * 2)];
+        }
+
+        out.reset(maxEncodedLength(model, len));
+
+        table.encodeOptimal(src, off, len, costs, out);
+        table.encodeEof(out);
+
+        return out.finish();
+    }
+
+    /**
+     * Encodes {@code len} bytes of {@code src} starting at absolute index
+     * {@code off}. The position of {@code src} is not changed.
+     */
+    public byte[] encode(ByteBuffer src, int off, int len) {
+        out.reset(maxEncodedLength(model, len));
+
+        table.encode(src, off, len, true, out);
+        table.encodeEof(out);
+
+        return out.finish();
+    }
+
+    /**
+     * Encodes {@code len} bytes of {@code src} into {@code dst} starting at
+     * {@code dstOff}.
+     *
+     * @return the number of bytes written
+     * @throws java.nio.BufferOverflowException
+     *             if {@code dst} is too small
+     */
+    public int encode(byte[] src, int off, int len, byte[] dst, int dstOff) {
+        out.reset(dst, dstOff, dst.length - dstOff);
+
+        table.encode(src, off, len, true, out);
+        table.encodeEof(out);
+
+        return out.complete();
+    }
+
+    /**
+     * Encodes the remaining bytes of {@code src} into {@code dst}, advancing
+     * both positions.
+     *
+     * @return the number of bytes written
+     * @throws java.nio.BufferOverflowException
+     *             if {@code dst} is too small
+     */
+    public int encode(ByteBuffer src, ByteBuffer dst) {
+        out.reset(dst);
+
+        table.encode(src, src.position(), src.remaining(), true, out);
+        table.encodeEof(out);
+
+        int written = out.complete();
+        src.position(src.limit());
+        dst.position(dst.position() + written);
+
+        return written;
+    }
+
+    /**
+     * Encodes each record separately into one shared buffer.
+     */
+    public RecordBatch encodeBatch(byte[][] records) {
+        int[] offsets = new int[records.length + 1];
+        long bound = 0;
+
+        for (byte[] record : records) {
+            bound += maxEncodedLength(model, record.length);
+        }
+
+        byte[] dst = new byte[checkedBound(bound)];
+        int pos = 0;
+
+        for (int i = 0; i < records.length; i++) {
+            out.reset(dst, pos, dst.length - pos);
+
+            table.encode(records[i], 0, records[i].length, true, out);
+            table.encodeEof(out);
+
+            pos += out.complete();
+            offsets[i + 1] = pos;
+        }
+
+        return new RecordBatch(Arrays.copyOf(dst, pos), offsets);
+    }
+
+    /**
+     * Encodes each record of {@code records} separately into one shared
+     * buffer.
+     */
+    public RecordBatch encodeBatch(RecordBatch records) {
+        int[] srcOffsets = records.getOffsets();
+        long bound = 0;
+
+        for (int i = 0; i < records.size(); i++) {
+            bound += maxEncodedLength(model, records.length(i));
+        }
+
+        byte[] dst = new byte[checkedBound(bound)];
+        int[] offsets = new int[srcOffsets.length];
+        int written = encodeBatch(records.getData(), srcOffsets, dst, 0,
+                offsets);
+
+        return new RecordBatch(Arrays.copyOf(dst, written), offsets);
+    }
+
+    /**
+     * Encodes the records {@code src[srcOffsets[i] .. srcOffsets[i + 1])}
+     * back to back into {@code dst} from {@code dstOff}, storing the encoded
+     * record boundaries in {@code dstOffsets}, which must be as long as
+     * {@code srcOffsets}.
+     *
+     * @return the number of bytes written
+     * @throws java.nio.BufferOverflowException
+     *             if {@code dst} is too small
+     */
+    public int encodeBatch(byte[] src, int[] srcOffsets, byte[] dst,
+            int dstOff, int[] dstOffsets) {
+        int pos = dstOff;
+        dstOffsets[0] = pos;
+
+        for (int i = 0; i + 1 < srcOffsets.length; i++) {
+            out.reset(dst, pos, dst.length - pos);
+
+            table.encode(src, srcOffsets[i], srcOffsets[i + 1] - srcOffsets[i],
+                    true, out);
+            table.encodeEof(out);
+
+            pos += out.complete();
+            dstOffsets[i + 1] = pos;
+        }
+
+        return pos - dstOff;
+    }
+
+    private static int checkedBound(long bound) {
+        if (bound > Integer.MAX_VALUE) {
+            throw new HuffmanEncodingException(
+                    "Error: encoded batch may exceed 2 GB!");
+        }
+
+        return (int) bound;
+    }
+
+    public byte[] encodeInterleaved(byte[] src) {
+        return encodeInterleaved(src, 0, src.length);
+    }
+
+    /**
+     * Encodes {@code len} bytes of {@code src} in the interleaved format: the
+     * input is split into {@link HuffmanDecoder#STREAMS} equal segments, each
+     * coded as its own sub-stream with no EOF symbol, so that a decoder can
+     * advance all of them in one loop. The header holds varints for the input
+     * length and for the byte lengths of all but the last sub-stream.
+     */
+    public byte[] encodeInterleaved(byte[] src, int off, int len) {
+        int streams = HuffmanDecoder.STREAMS;
+        int seg = (len + streams - 1) / streams;
+        int headerMax = streams * 5;
+        int bound = headerMax + streams * maxEncodedLength(model, seg);
+
+        if (scratch.length < bound) {
+            scratch = new byte[Math.max(bound, scratch.length * 2)];
+        }
+
+        int[] lengths = new int[streams];
+        int pos = headerMax;
+
+        for (int k = 0; k < streams; k++) {
+            int start = Math.min(k * seg, len);
+            int end = Math.min(start + seg, len);
+
+            out.reset(scratch, pos, scratch.length - pos);
+            table.encode(src, off + start, end - start, true, out);
+
+            lengths[k] = out.complete();
+            pos += lengths[k];
+        }
+
+        int header = Varint.size(len);
+        for (int k = 0; k < streams - 1; k++) {
+            header += Varint.size(lengths[k]);
+        }
+
+        byte[] toReturn = new byte[header + pos - headerMax];
+        int p = Varint.write(toReturn, 0, len);
+
+        for (int k = 0; k < streams - 1; k++) {
+            p = Varint.write(toReturn, p, lengths[k]);
+        }
+
+        System.arraycopy(scratch, headerMax, toReturn, p, pos - headerMax);
+
+        return toReturn;
+    }
+}
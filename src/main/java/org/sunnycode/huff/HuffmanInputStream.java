@@ -0,0 +1,208 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sunnycode.huff;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+
+import org.sunnycode.huff.io.BitInput;
+import org.sunnycode.huff.model.DecodeTable;
+import org.sunnycode.huff.model.TextModel;
+
+/**
+ * Incremental decoder for a bitstream produced by {@link HuffmanOutputStream}
+ * or {@link HuffmanCodec#encode(byte[], TextModel)}, using a fixed-size
+ * buffer. End of stream is reported once the EOF symbol is decoded.
+ *
+ * On a non-blocking source, {@link #read(ByteBuffer)} returns 0 when no more
+ * input is available yet, and {@link #read()} fails.
+ */
+public class HuffmanInputStream extends InputStream implements
+        ReadableByteChannel {
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private final ReadableByteChannel source;
+    private final DecodeTable table;
+    private final BitInput in;
+    private final int maxBits;
+    private boolean sourceOpen;
+    private int pending;
+    private int pendingLen;
+    private boolean done;
+    private boolean closed;
+
+    public HuffmanInputStream(InputStream source, TextModel d) {
+        this(Channels.newChannel(source), d, DEFAULT_BUFFER_SIZE);
+    }
+
+    public HuffmanInputStream(ReadableByteChannel source, TextModel d) {
+        this(source, d, DEFAULT_BUFFER_SIZE);
+    }
+
+    public HuffmanInputStream(ReadableByteChannel source, TextModel d,
+            int bufferSize) {
+        if (bufferSize < 16 || bufferSize > Integer.MAX_VALUE - 7) {
+            throw new IllegalArgumentException(
+                    "bufferSize must be at least 16!");
+        }
+
+        this.source = source;
+        this.table = d.getDecodeTable();
+        this.maxBits = table.getMaxBits();
+        this.in = new BitInput((bufferSize + 7) & ~7);
+        this.sourceOpen = true;
+        this.pending = 0;
+        this.pendingLen = 0;
+        this.done = false;
+    }
+
+    @Override
+    public int read() throws IOException {
+        ensureOpen();
+
+        if (pendingLen == 0 && !decodeNext()) {
+            if (!done) {
+                throw new IOException("Error: no input available from source!");
+            }
+
+            return -1;
+        }
+
+        int b = pending & 0xFF;
+        pending >>>= 8;
+        pendingLen -= 1;
+
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+
+        int read = 0;
+
+        while (read < len) {
+            if (pendingLen == 0 && !decodeNext()) {
+                break;
+            }
+
+            b[off + read++] = (byte) pending;
+            pending >>>= 8;
+            pendingLen -= 1;
+        }
+
+        return (read == 0 && len > 0 && done) ? -1 : read;
+    }
+
+    public int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+
+        int read = 0;
+
+        while (dst.hasRemaining()) {
+            if (pendingLen == 0 && !decodeNext()) {
+                break;
+            }
+
+            dst.put((byte) pending);
+            pending >>>= 8;
+            pendingLen -= 1;
+            read += 1;
+        }
+
+        return (read == 0 && done) ? -1 : read;
+    }
+
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            source.close();
+        }
+    }
+
+    private boolean decodeNext() throws IOException {
+        if (done) {
+            return false;
+        }
+
+        if (sourceOpen && in.available() < maxBits + 8) {
+            sourceOpen = in.fill(source);
+        }
+
+        int matched = table.lookup(in.peek(maxBits));
+
+        // a non-blocking source may deliver the rest of the code later
+        if (matched == 0 && sourceOpen && in.available() < maxBits) {
+            return false;
+        }
+
+        if (matched == 0) {
+            throw new HuffmanEncodingException(
+                    "Huffman decode failed to match token");
+        }
+
+        int numBits = DecodeTable.codeLength(matched);
+        int sym = DecodeTable.symbol(matched);
+        int needed = (sym == TextModel.ESCAPE) ? numBits + 8 : numBits;
+
+        if (needed > in.available()) {
+            if (sourceOpen) {
+                return false;
+            }
+
+            throw new HuffmanEncodingException(
+                    (sym == TextModel.ESCAPE) ? "Huffman stream truncated in "
+                            + "escaped byte"
+                            : "Huffman stream truncated before EOF");
+        }
+
+        in.advance(numBits);
+
+        if (sym == TextModel.EOF) {
+            done = true;
+
+            return false;
+        }
+
+        if (sym == TextModel.ESCAPE) {
+            pending = (int) in.peek(8);
+            pendingLen = 1;
+            in.advance(8);
+        } else {
+            pending = sym;
+            pendingLen = (sym > 0xFFFF) ? 3 : ((sym > 0xFF) ? 2 : 1);
+        }
+
+        return true;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+    }
+}
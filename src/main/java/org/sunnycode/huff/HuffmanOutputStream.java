@@ -0,0 +1,170 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sunnycode.huff;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+
+import org.sunnycode.huff.io.BitOutput;
+import org.sunnycode.huff.model.EncodeTable;
+import org.sunnycode.huff.model.TextModel;
+
+/**
+ * Incremental encoder producing the same bitstream as
+ * {@link HuffmanCodec#encode(byte[], TextModel)} over everything written,
+ * using fixed-size buffers. Input that could still be part of a multi-byte
+ * token is held back until more input arrives or the stream is closed.
+ */
+public class HuffmanOutputStream extends OutputStream implements
+        WritableByteChannel {
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private final WritableByteChannel target;
+    private final OutputStream stream;
+    private final EncodeTable table;
+    private final BitOutput out;
+    private final byte[] pending;
+    private int pendingLen;
+    private boolean closed;
+
+    public HuffmanOutputStream(OutputStream target, TextModel d) {
+        this(Channels.newChannel(target), target, d, DEFAULT_BUFFER_SIZE);
+    }
+
+    public HuffmanOutputStream(WritableByteChannel target, TextModel d) {
+        this(target, null, d, DEFAULT_BUFFER_SIZE);
+    }
+
+    public HuffmanOutputStream(WritableByteChannel target, TextModel d,
+            int bufferSize) {
+        this(target, null, d, bufferSize);
+    }
+
+    private HuffmanOutputStream(WritableByteChannel target,
+            OutputStream stream, TextModel d, int bufferSize) {
+        if (bufferSize < 16) {
+            throw new IllegalArgumentException(
+                    "bufferSize must be at least 16!");
+        }
+
+        this.target = target;
+        this.stream = stream;
+        this.table = d.getEncodeTable();
+        this.pending = new byte[bufferSize];
+        this.pendingLen = 0;
+
+        int maxBits = (bufferSize + 1) * d.getMaxBitsPerByte();
+        this.out = new BitOutput(((maxBits + 63) >>> 6) * 8 + 8);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+
+        if (pendingLen == pending.length) {
+            encodePending(false);
+        }
+
+        pending[pendingLen++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+
+        while (len > 0) {
+            if (pendingLen == pending.length) {
+                encodePending(false);
+            }
+
+            int todo = Math.min(len, pending.length - pendingLen);
+            System.arraycopy(b, off, pending, pendingLen, todo);
+            pendingLen += todo;
+            off += todo;
+            len -= todo;
+        }
+    }
+
+    public int write(ByteBuffer src) throws IOException {
+        ensureOpen();
+
+        int written = src.remaining();
+
+        while (src.hasRemaining()) {
+            if (pendingLen == pending.length) {
+                encodePending(false);
+            }
+
+            int todo = Math.min(src.remaining(), pending.length - pendingLen);
+            src.get(pending, pendingLen, todo);
+            pendingLen += todo;
+        }
+
+        return written;
+    }
+
+    /**
+     * Writes out all completed words. Up to two trailing input bytes and the
+     * last partial word stay buffered until {@link #close()}.
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        encodePending(false);
+
+        if (stream != null) {
+            stream.flush();
+        }
+    }
+
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        encodePending(true);
+        table.encodeEof(out);
+        out.finishTo(target);
+        closed = true;
+        target.close();
+    }
+
+    private void encodePending(boolean flush) throws IOException {
+        int consumed = table.encode(pending, 0, pendingLen, flush, out);
+
+        System.arraycopy(pending, consumed, pending, 0, pendingLen - consumed);
+        pendingLen -= consumed;
+
+        out.drainTo(target);
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+    }
+}
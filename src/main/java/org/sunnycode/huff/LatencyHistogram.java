@@ -0,0 +1,95 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sunnycode.huff;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations in power-of-two nanosecond buckets: bucket
+ * {@code k} counts durations of {@code 2^(k-1)} up to {@code 2^k - 1} ns.
+ * Striped by thread like {@link StripedCounter}.
+ */
+public class LatencyHistogram {
+    public static final int BUCKETS = 64;
+
+    private final AtomicLongArray cells;
+    private final int mask;
+
+    public LatencyHistogram() {
+        int stripes = StripedCounter.stripes();
+
+        this.cells = new AtomicLongArray(stripes * BUCKETS);
+        this.mask = stripes - 1;
+    }
+
+    public void record(long nanos) {
+        int bucket = BUCKETS - Long.numberOfLeadingZeros(Math.max(nanos, 0L));
+
+        cells.getAndIncrement(StripedCounter.stripe(mask) * BUCKETS
+                + Math.min(bucket, BUCKETS - 1));
+    }
+
+    /**
+     * @return the count in each bucket
+     */
+    public long[] buckets() {
+        long[] buckets = new long[BUCKETS];
+
+        for (int i = 0; i < cells.length(); i++) {
+            buckets[i % BUCKETS] += cells.get(i);
+        }
+
+        return buckets;
+    }
+
+    public long count() {
+        long count = 0;
+
+        for (long c : buckets()) {
+            count += c;
+        }
+
+        return count;
+    }
+
+    /**
+     * @return an upper bound in nanoseconds on the given quantile (0-1) of
+     *         the recorded durations, or 0 if none were recorded
+     */
+    public long quantile(double q) {
+        long[] buckets = buckets();
+        long total = 0;
+
+        for (long c : buckets) {
+            total += c;
+        }
+
+        long rank = (long) Math.ceil(q * total);
+        long seen = 0;
+
+        for (int k = 0; k < buckets.length; k++) {
+            seen += buckets[k];
+
+            if (seen >= rank && seen > 0) {
+                return (k == 0) ? 0L : (1L << k) - 1;
+            }
+        }
+
+        return 0L;
+    }
+}
@@ -0,0 +1,279 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sunnycode.huff;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.sunnycode.huff.io.Varint;
+import org.sunnycode.huff.model.ModelLoader;
+import org.sunnycode.huff.model.TextModel;
+
+/**
+ * Encodes with a model identified by id and version, and decodes by
+ * resolving the model named in the payload. Payloads start with a varint
+ * model id and a varint version, followed by the standard format.
+ *
+ * Models are loaded on first use and kept in an LRU cache whose models take
+ * at most {@code maxTableBytes} of tables, as measured by
+ * {@link TextModel#getTableBytes()}; the most recently loaded model is kept
+ * even if it alone is larger. Concurrent requests for a model that is being
+ * loaded wait for the one load in flight.
+ */
+public class ModelRegistry {
+    public static final long DEFAULT_MAX_TABLE_BYTES = 256L * 1024 * 1024;
+
+    private final ModelLoader loader;
+    private final long maxTableBytes;
+    private final Map<Long, TextModel> cache = new LinkedHashMap<Long, TextModel>(
+            16, 0.75f, true);
+    private long tableBytes;
+    private final ConcurrentMap<Long, FutureTask<TextModel>> loading = new ConcurrentHashMap<Long, FutureTask<TextModel>>();
+
+    public ModelRegistry(ModelLoader loader) {
+        this(loader, DEFAULT_MAX_TABLE_BYTES);
+    }
+
+    public ModelRegistry(ModelLoader loader, long maxTableBytes) {
+        if (maxTableBytes < 1) {
+            throw new IllegalArgumentException(
+                    "maxTableBytes must be positive!");
+        }
+
+        this.loader = loader;
+        this.maxTableBytes = maxTableBytes;
+    }
+
+    /**
+     * @return the model, loading it if it is not cached
+     */
+    public TextModel get(final int id, final int version) throws IOException {
+        final Long key = key(id, version);
+        TextModel d;
+
+        synchronized (cache) {
+            d = cache.get(key);
+        }
+
+        if (d != null) {
+            return d;
+        }
+
+        FutureTask<TextModel> task = new FutureTask<TextModel>(
+                new Callable<TextModel>() {
+                    public TextModel call() throws IOException {
+                        // a load that finished after our cache miss
+                        synchronized (cache) {
+                            TextModel cached = cache.get(key);
+
+                            if (cached != null) {
+                                return cached;
+                            }
+                        }
+
+                        TextModel loaded = loader.load(id, version);
+
+                        synchronized (cache) {
+                            put(key, loaded);
+                        }
+
+                        return loaded;
+                    }
+                });
+        FutureTask<TextModel> running = loading.putIfAbsent(key, task);
+
+        if (running == null) {
+            running = task;
+            task.run();
+            loading.remove(key, task);
+        }
+
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            throw new InterruptedIOException("Error: interrupted loading model "
+                    + id + " v" + version + "!");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * @return the number of cached models
+     */
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    /**
+     * @return the table bytes of the cached models
+     */
+    public long tableBytes() {
+        synchronized (cache) {
+            return tableBytes;
+        }
+    }
+
+    public void evict(int id, int version) {
+        synchronized (cache) {
+            TextModel d = cache.remove(key(id, version));
+
+            if (d != null) {
+                tableBytes -= d.getTableBytes();
+            }
+        }
+    }
+
+    /**
+     * Caches {@code d} and evicts least recently used models until the rest
+     * fit in {@code maxTableBytes}. Called holding the cache lock.
+     */
+    private void put(Long key, TextModel d) {
+        TextModel old = cache.put(key, d);
+
+        if (old != null) {
+            tableBytes -= old.getTableBytes();
+        }
+
+        tableBytes += d.getTableBytes();
+
+        Iterator<TextModel> eldest = cache.values().iterator();
+
+        while (tableBytes > maxTableBytes && cache.size() > 1) {
+            tableBytes -= eldest.next().getTableBytes();
+            eldest.remove();
+        }
+    }
+
+    public byte[] encode(int id, int version, byte[] src) throws IOException {
+        return encode(id, version, src, 0, src.length);
+    }
+
+    public byte[] encode(int id, int version, byte[] src, int off, int len)
+            throws IOException {
+        return encode(id, version, get(id, version), src, off, len);
+    }
+
+    /**
+     * Encodes with {@code d} under the header of model {@code id} version
+     * {@code version}, without going through the cache.
+     */
+    static byte[] encode(int id, int version, TextModel d, byte[] src,
+            int off, int len) {
+        if (id < 0 || version < 0) {
+            throw new IllegalArgumentException(
+                    "Error: model id and version must not be negative!");
+        }
+
+        byte[] dst = new byte[Varint.size(id) + Varint.size(version)
+                + HuffmanEncoder.maxEncodedLength(d, len)];
+
+        int pos = Varint.write(dst, 0, id);
+        pos = Varint.write(dst, pos, version);
+
+        try {
+            pos += HuffmanEncoder.local(d).encode(src, off, len, dst, pos);
+        } finally {
+            HuffmanEncoder.releaseLocal();
+        }
+
+        byte[] result = new byte[pos];
+        System.arraycopy(dst, 0, result, 0, pos);
+
+        return result;
+    }
+
+    public byte[] decode(byte[] src) throws IOException {
+        return decode(src, 0, src.length);
+    }
+
+    public byte[] decode(byte[] src, int off, int len) throws IOException {
+        int end = off + len;
+        long read = header(src, off, end);
+        int id = Varint.value(read);
+        int pos = off + Varint.length(read);
+        read = header(src, pos, end);
+        int version = Varint.value(read);
+        pos += Varint.length(read);
+
+        TextModel d = get(id, version);
+
+        try {
+            return HuffmanDecoder.local(d).decode(src, pos, off + len - pos);
+        } finally {
+            HuffmanDecoder.releaseLocal();
+        }
+    }
+
+    /**
+     * @return the model id named in the header of {@code src}
+     */
+    public static int modelId(byte[] src, int off) {
+        return Varint.value(header(src, off, src.length));
+    }
+
+    /**
+     * @return the model version named in the header of {@code src}
+     */
+    public static int modelVersion(byte[] src, int off) {
+        int pos = off + Varint.length(header(src, off, src.length));
+
+        return Varint.value(header(src, pos, src.length));
+    }
+
+    /**
+     * @return a {@link Varint#readInt(byte[], int, int)} result for the
+     *         header field at {@code off}
+     * @throws HuffmanEncodingException
+     *             if the field is truncated or out of range
+     */
+    private static long header(byte[] src, int off, int end) {
+        long read = Varint.readInt(src, off, end);
+
+        if (read < 0) {
+            throw new HuffmanEncodingException(
+                    "Error: model header is truncated or corrupt!");
+        }
+
+        return read;
+    }
+
+    private static Long key(int id, int version) {
+        return ((long) id << 32) | (version & 0xFFFFFFFFL);
+    }
+}
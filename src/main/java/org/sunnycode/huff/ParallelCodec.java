@@ -0,0 +1,272 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sunnycode.huff;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.sunnycode.huff.io.Varint;
+import org.sunnycode.huff.model.TextModel;
+
+/**
+ * Framed format for large payloads: the input is split into fixed-size
+ * blocks, each coded independently in the standard format, so blocks can be
+ * encoded and decoded in parallel on a {@link ForkJoinPool}.
+ *
+ * The frame starts with a varint block count, followed by a varint raw length
+ * and a varint encoded length per block, followed by the encoded blocks back
+ * to back.
+ */
+public class ParallelCodec {
+    public static final int DEFAULT_BLOCK_SIZE = 256 * 1024;
+    private static final ForkJoinPool DEFAULT_POOL = new ForkJoinPool();
+
+    private ParallelCodec() {
+    }
+
+    public static byte[] encode(byte[] src, TextModel d) {
+        return encode(ByteBuffer.wrap(src), d, DEFAULT_BLOCK_SIZE, DEFAULT_POOL);
+    }
+
+    public static byte[] encode(ByteBuffer src, TextModel d) {
+        return encode(src, d, DEFAULT_BLOCK_SIZE, DEFAULT_POOL);
+    }
+
+    /**
+     * Encodes the remaining bytes of {@code src}, which may be a
+     * memory-mapped file, advancing its position to the limit.
+     */
+    public static byte[] encode(ByteBuffer src, TextModel d, int blockSize,
+            ForkJoinPool pool) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("blockSize must be positive!");
+        }
+
+        int base = src.position();
+        int len = src.remaining();
+        int blocks = (len + blockSize - 1) / blockSize;
+        byte[][] encoded = new byte[blocks][];
+
+        if (blocks > 0) {
+            pool.invoke(new EncodeTask(src, base, len, blockSize, d, encoded,
+                    0, blocks));
+        }
+
+        long total = Varint.size(blocks);
+
+        for (int i = 0; i < blocks; i++) {
+            int rawLen = Math.min(blockSize, len - i * blockSize);
+            total += Varint.size(rawLen) + Varint.size(encoded[i].length)
+                    + encoded[i].length;
+        }
+
+        if (total > Integer.MAX_VALUE) {
+            throw new HuffmanEncodingException(
+                    "Encoded frame exceeds maximum array size");
+        }
+
+        byte[] frame = new byte[(int) total];
+        int p = Varint.write(frame, 0, blocks);
+
+        for (int i = 0; i < blocks; i++) {
+            p = Varint.write(frame, p, Math.min(blockSize, len - i * blockSize));
+            p = Varint.write(frame, p, encoded[i].length);
+        }
+
+        for (int i = 0; i < blocks; i++) {
+            System.arraycopy(encoded[i], 0, frame, p, encoded[i].length);
+            p += encoded[i].length;
+        }
+
+        src.position(src.limit());
+
+        return frame;
+    }
+
+    public static byte[] decode(byte[] src, TextModel d) {
+        return decode(src, d, DEFAULT_POOL);
+    }
+
+    public static byte[] decode(byte[] src, TextModel d, ForkJoinPool pool) {
+        long read = index(src, 0);
+        int blocks = Varint.value(read);
+        int p = Varint.length(read);
+
+        // each block's index entry takes at least two bytes
+        if (blocks > (src.length - p) / 2) {
+            throw new HuffmanEncodingException("Frame index is corrupt");
+        }
+
+        int[] rawOffsets = new int[blocks + 1];
+        int[] encOffsets = new int[blocks + 1];
+        long rawTotal = 0;
+        long encTotal = 0;
+
+        for (int i = 0; i < blocks; i++) {
+            read = index(src, p);
+            long rawLen = Varint.value(read);
+            p += Varint.length(read);
+            read = index(src, p);
+            long encLen = Varint.value(read);
+            p += Varint.length(read);
+
+            // every symbol takes at least one bit and yields at most 3 bytes
+            if (rawLen > 3 * 8 * encLen) {
+                throw new HuffmanEncodingException("Frame index is corrupt");
+            }
+
+            rawOffsets[i] = (int) rawTotal;
+            encOffsets[i] = (int) encTotal;
+            rawTotal += rawLen;
+            encTotal += encLen;
+
+            if (rawTotal > Integer.MAX_VALUE || encTotal > Integer.MAX_VALUE) {
+                throw new HuffmanEncodingException("Frame index is corrupt");
+            }
+        }
+
+        if (p + encTotal != src.length) {
+            throw new HuffmanEncodingException("Frame index is corrupt");
+        }
+
+        rawOffsets[blocks] = (int) rawTotal;
+        encOffsets[blocks] = (int) encTotal;
+
+        for (int i = 0; i <= blocks; i++) {
+            encOffsets[i] += p;
+        }
+
+        byte[] out = new byte[(int) rawTotal];
+
+        if (blocks > 0) {
+            pool.invoke(new DecodeTask(src, encOffsets, out, rawOffsets, d, 0,
+                    blocks));
+        }
+
+        return out;
+    }
+
+    private static long index(byte[] src, int off) {
+        long read = Varint.readInt(src, off, src.length);
+
+        if (read < 0) {
+            throw new HuffmanEncodingException("Frame index is corrupt");
+        }
+
+        return read;
+    }
+
+    private static class EncodeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final ByteBuffer src;
+        private final int base;
+        private final int len;
+        private final int blockSize;
+        private final TextModel model;
+        private final byte[][] encoded;
+        private final int lo;
+        private final int hi;
+
+        public EncodeTask(ByteBuffer src, int base, int len, int blockSize,
+                TextModel model, byte[][] encoded, int lo, int hi) {
+            this.src = src;
+            this.base = base;
+            this.len = len;
+            this.blockSize = blockSize;
+            this.model = model;
+            this.encoded = encoded;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo > 1) {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new EncodeTask(src, base, len, blockSize, model,
+                        encoded, lo, mid), new EncodeTask(src, base, len,
+                        blockSize, model, encoded, mid, hi));
+
+                return;
+            }
+
+            int off = lo * blockSize;
+
+            try {
+                encoded[lo] = HuffmanEncoder.local(model).encode(src, base
+                        + off, Math.min(blockSize, len - off));
+            } finally {
+                HuffmanEncoder.releaseLocal();
+            }
+        }
+    }
+
+    private static class DecodeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] src;
+        private final int[] encOffsets;
+        private final byte[] out;
+        private final int[] rawOffsets;
+        private final TextModel model;
+        private final int lo;
+        private final int hi;
+
+        public DecodeTask(byte[] src, int[] encOffsets, byte[] out,
+                int[] rawOffsets, TextModel model, int lo, int hi) {
+            this.src = src;
+            this.encOffsets = encOffsets;
+            this.out = out;
+            this.rawOffsets = rawOffsets;
+            this.model = model;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo > 1) {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new DecodeTask(src, encOffsets, out, rawOffsets,
+                        model, lo, mid), new DecodeTask(src, encOffsets, out,
+                        rawOffsets, model, mid, hi));
+
+                return;
+            }
+
+            int rawLen = rawOffsets[lo + 1] - rawOffsets[lo];
+            int written;
+
+            try {
+                written = HuffmanDecoder.local(model).decode(src,
+                        encOffsets[lo], encOffsets[lo + 1] - encOffsets[lo],
+                        out, rawOffsets[lo], rawLen);
+            } finally {
+                HuffmanDecoder.releaseLocal();
+            }
+
+            if (written != rawLen) {
+                throw new HuffmanEncodingException("Block " + lo
+                        + " decoded to " + written + " bytes, expected "
+                        + rawLen);
+            }
+        }
+    }
+}
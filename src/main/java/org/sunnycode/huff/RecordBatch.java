@@ -0,0 +1,94 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sunnycode.huff;
+
+/**
+ * Many records stored back to back in one buffer. Record {@code i} occupies
+ * {@code data[offsets[i] .. offsets[i + 1])}, so {@code offsets} has one
+ * more entry than there are records.
+ */
+public class RecordBatch {
+    private final byte[] data;
+    private final int[] offsets;
+
+    public RecordBatch(byte[] data, int[] offsets) {
+        if (offsets.length < 1) {
+            throw new IllegalArgumentException(
+                    "offsets must have at least one entry!");
+        }
+
+        this.data = data;
+        this.offsets = offsets;
+    }
+
+    /**
+     * Packs {@code records} into one buffer.
+     */
+    public static RecordBatch of(byte[][] records) {
+        int[] offsets = new int[records.length + 1];
+        long total = 0;
+
+        for (int i = 0; i < records.length; i++) {
+            total += records[i].length;
+
+            if (total > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("batch exceeds 2 GB!");
+            }
+
+            offsets[i + 1] = (int) total;
+        }
+
+        byte[] data = new byte[(int) total];
+
+        for (int i = 0; i < records.length; i++) {
+            System.arraycopy(records[i], 0, data, offsets[i], records[i].length);
+        }
+
+        return new RecordBatch(data, offsets);
+    }
+
+    public int size() {
+        return offsets.length - 1;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public int[] getOffsets() {
+        return offsets;
+    }
+
+    public int offset(int i) {
+        return offsets[i];
+    }
+
+    public int length(int i) {
+        return offsets[i + 1] - offsets[i];
+    }
+
+    /**
+     * @return a copy of record {@code i}
+     */
+    public byte[] get(int i) {
+        byte[] record = new byte[length(i)];
+        System.arraycopy(data, offsets[i], record, 0, record.length);
+
+        return record;
+    }
+}
@@ -0,0 +1,31 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sunnycode.huff;
+
+/**
+ * Notified of the outcome of each {@link RetrainingCodec} retrain. Called on
+ * the retraining executor. Ratios are encoded bytes per input byte on the
+ * records held back from training.
+ */
+public interface RetrainListener {
+    void published(int id, int version, double oldRatio, double newRatio);
+
+    void rejected(int id, double oldRatio, double newRatio);
+
+    void failed(int id, Exception e);
+}
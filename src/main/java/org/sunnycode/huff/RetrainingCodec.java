@@ -0,0 +1,388 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sunnycode.huff;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.sunnycode.huff.model.DirectoryModelLoader;
+import org.sunnycode.huff.model.HuffCode;
+import org.sunnycode.huff.model.TextModel;
+
+/**
+ * Encodes with the latest version of a model and retrains it from the
+ * traffic. Every {@code sampleEvery}-th record is sampled: one in
+ * {@value #HOLD_OUT_EVERY} is held back, keeping the most recent
+ * {@code window} bytes, and the rest are scanned into a builder. The ratio
+ * achieved is measured over windows of {@code window} input bytes, and the
+ * first full window after a model is published is its baseline. When a
+ * window codes more than {@code threshold} worse than the baseline, and at
+ * least {@code minInterval} has passed since the last retrain, a candidate is
+ * built from the sample on {@code executor}. It is saved as the next version
+ * and published only if it codes the held-back records more than
+ * {@code threshold} better than the current model; versions more than
+ * {@code retain} behind it are then deleted.
+ *
+ * The sample is rotated every {@value #GENERATION} windows of sampled input,
+ * keeping the generation before, so it covers the recent traffic in bounded
+ * memory. The sample of a rejected candidate is kept as the generation before.
+ *
+ * Each encode reads the published model once, so encodes in flight finish
+ * on the model they started with. Payloads carry the model id and version in
+ * the {@link ModelRegistry} format, so those written with the retained
+ * versions stay decodable.
+ */
+public class RetrainingCodec {
+    public static final int DEFAULT_SAMPLE_EVERY = 16;
+    public static final long DEFAULT_WINDOW = 1024 * 1024;
+    public static final double DEFAULT_THRESHOLD = 0.1;
+    public static final long DEFAULT_MIN_INTERVAL = TimeUnit.MINUTES
+            .toNanos(1);
+    public static final int DEFAULT_RETAIN = 16;
+
+    private static final int HOLD_OUT_EVERY = 4;
+    private static final int GENERATION = 8;
+
+    private final DirectoryModelLoader store;
+    private final ModelRegistry registry;
+    private final int id;
+    private final Executor executor;
+    private final int sampleEvery;
+    private final long window;
+    private final double threshold;
+    private final long minInterval;
+    private final int retain;
+    private final RetrainListener listener;
+
+    private final AtomicReference<Published> published;
+    private final AtomicBoolean retraining = new AtomicBoolean();
+    private final AtomicLong records = new AtomicLong();
+    private final AtomicLong lastRetrain;
+
+    private final Object sampleLock = new Object();
+    private long sampled;
+    private TextModel.Builder previous;
+    private TextModel.Builder sample;
+    private long sampleBytes;
+    private final ArrayDeque<byte[]> heldOut = new ArrayDeque<byte[]>();
+    private long heldOutBytes;
+
+    private final Object windowLock = new Object();
+    private long windowIn;
+    private long windowOut;
+
+    public RetrainingCodec(DirectoryModelLoader store, ModelRegistry registry,
+            int id, Executor executor) throws IOException {
+        this(store, registry, id, executor, DEFAULT_SAMPLE_EVERY,
+                DEFAULT_WINDOW, DEFAULT_THRESHOLD, DEFAULT_MIN_INTERVAL,
+                DEFAULT_RETAIN, null);
+    }
+
+    /**
+     * @param minInterval
+     *            the least time between triggered retrains, in nanoseconds
+     * @param retain
+     *            the number of versions kept, including the latest
+     * @param listener
+     *            notified of each retrain, or null
+     */
+    public RetrainingCodec(DirectoryModelLoader store, ModelRegistry registry,
+            int id, Executor executor, int sampleEvery, long window,
+            double threshold, long minInterval, int retain,
+            RetrainListener listener) throws IOException {
+        if (sampleEvery < 1 || window < 1 || threshold < 0 || minInterval < 0) {
+            throw new IllegalArgumentException(
+                    "Error: bad sampling or threshold settings!");
+        }
+
+        if (retain < 1) {
+            throw new IllegalArgumentException(
+                    "Error: must retain at least one version!");
+        }
+
+        int version = store.latest(id);
+
+        if (version == 0) {
+            throw new IllegalArgumentException("Error: no model " + id
+                    + " to start from!");
+        }
+
+        this.store = store;
+        this.registry = registry;
+        this.id = id;
+        this.executor = executor;
+        this.sampleEvery = sampleEvery;
+        this.window = window;
+        this.threshold = threshold;
+        this.minInterval = minInterval;
+        this.retain = retain;
+        this.listener = listener;
+
+        TextModel d = registry.get(id, version);
+
+        this.published = new AtomicReference<Published>(new Published(
+                version, d));
+        this.sample = newSample(d);
+        this.lastRetrain = new AtomicLong(System.nanoTime() - minInterval);
+    }
+
+    /**
+     * @return the version new payloads are encoded with
+     */
+    public int version() {
+        return published.get().version;
+    }
+
+    public byte[] encode(byte[] src) {
+        return encode(src, 0, src.length);
+    }
+
+    public byte[] encode(byte[] src, int off, int len) {
+        Published p = published.get();
+        byte[] encoded = ModelRegistry.encode(id, p.version, p.model, src, off,
+                len);
+
+        if (records.incrementAndGet() % sampleEvery == 0) {
+            sample(p, src, off, len);
+        }
+
+        measure(p, len, encoded.length);
+
+        return encoded;
+    }
+
+    public byte[] decode(byte[] src) throws IOException {
+        return registry.decode(src);
+    }
+
+    public byte[] decode(byte[] src, int off, int len) throws IOException {
+        return registry.decode(src, off, len);
+    }
+
+    /**
+     * Starts building a candidate model from the sample unless a build is
+     * already running. Unlike a triggered retrain this ignores
+     * {@code minInterval}.
+     *
+     * @return true if a build was started, false if one is already running
+     *         or the executor rejected it
+     */
+    public boolean retrain() {
+        if (!retraining.compareAndSet(false, true)) {
+            return false;
+        }
+
+        lastRetrain.set(System.nanoTime());
+
+        final Published p = published.get();
+        final TextModel.Builder b;
+        final List<byte[]> records;
+
+        synchronized (sampleLock) {
+            if (previous != null) {
+                previous.merge(sample);
+                b = previous;
+            } else {
+                b = sample;
+            }
+
+            previous = null;
+            sample = newSample(p.model);
+            sampleBytes = 0;
+            records = Arrays.asList(heldOut.toArray(new byte[heldOut.size()][]));
+        }
+
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        TextModel d = b.build();
+                        double oldRatio = ratio(p.model, records);
+                        double newRatio = ratio(d, records);
+
+                        if (newRatio * (1 + threshold) >= oldRatio) {
+                            restore(b);
+
+                            if (listener != null) {
+                                listener.rejected(id, oldRatio, newRatio);
+                            }
+
+                            return;
+                        }
+
+                        int version = store.save(id, d);
+
+                        synchronized (windowLock) {
+                            published.set(new Published(version, d));
+                            windowIn = 0;
+                            windowOut = 0;
+                        }
+
+                        for (int old = version - retain; old > 0
+                                && store.delete(id, old); old--) {
+                            registry.evict(id, old);
+                        }
+
+                        if (listener != null) {
+                            listener.published(id, version, oldRatio, newRatio);
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        if (listener != null) {
+                            listener.failed(id, e);
+                        }
+                    } finally {
+                        retraining.set(false);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            restore(b);
+            retraining.set(false);
+
+            if (listener != null) {
+                listener.failed(id, e);
+            }
+
+            return false;
+        }
+
+        return true;
+    }
+
+    private void sample(Published p, byte[] src, int off, int len) {
+        synchronized (sampleLock) {
+            if (++sampled % HOLD_OUT_EVERY == 0) {
+                heldOut.addLast(Arrays.copyOfRange(src, off, off + len));
+                heldOutBytes += len;
+
+                while (heldOutBytes > window && heldOut.size() > 1) {
+                    heldOutBytes -= heldOut.removeFirst().length;
+                }
+
+                return;
+            }
+
+            if (sampleBytes >= GENERATION * window) {
+                previous = sample;
+                sample = newSample(p.model);
+                sampleBytes = 0;
+            }
+
+            sample.scan(src, off, len);
+            sample.scanLine("");
+            sampleBytes += len;
+        }
+    }
+
+    /**
+     * Returns the sample of a rejected candidate as the previous generation,
+     * unless a newer one has already taken its place.
+     */
+    private void restore(TextModel.Builder b) {
+        synchronized (sampleLock) {
+            if (previous == null) {
+                previous = b;
+            }
+        }
+    }
+
+    private void measure(Published p, long in, long out) {
+        boolean worse = false;
+
+        synchronized (windowLock) {
+            if (p != published.get()) {
+                return;
+            }
+
+            windowIn += in;
+            windowOut += out;
+
+            if (windowIn < window) {
+                return;
+            }
+
+            double ratio = (double) windowOut / windowIn;
+
+            if (p.baseline == 0) {
+                p.baseline = ratio;
+            } else if (ratio > p.baseline * (1 + threshold)) {
+                worse = true;
+            }
+
+            windowIn = 0;
+            windowOut = 0;
+        }
+
+        if (worse && System.nanoTime() - lastRetrain.get() >= minInterval) {
+            retrain();
+        }
+    }
+
+    /**
+     * @return encoded bytes per input byte of {@code d} on {@code records}
+     */
+    private static double ratio(TextModel d, List<byte[]> records) {
+        HuffmanEncoder encoder = new HuffmanEncoder(d);
+        long in = 0;
+        long out = 0;
+
+        for (byte[] record : records) {
+            in += record.length;
+            out += encoder.encode(record).length;
+        }
+
+        return (in == 0) ? 0 : (double) out / in;
+    }
+
+    /**
+     * @return a builder that already knows every byte of {@code d}, so the
+     *         next model can still code whatever this one could
+     */
+    private TextModel.Builder newSample(TextModel d) {
+        TextModel.Builder b = new TextModel.Builder(d.getContext());
+
+        for (HuffCode code : d.getDictionary().values()) {
+            int sym = code.getSource();
+
+            if (sym != TextModel.EOF && sym <= 0xFF) {
+                b.scan(sym);
+                b.clearContext();
+            }
+        }
+
+        return b;
+    }
+
+    private static class Published {
+        private final int version;
+        private final TextModel model;
+        private double baseline;
+
+        public Published(int version, TextModel model) {
+            this.version = version;
+            this.model = model;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sunnycode.huff;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter spread over cache-line separated cells chosen by thread id, so
+ * threads updating it concurrently rarely contend. Reads sum the cells.
+ */
+class StripedCounter {
+    private static final int PAD = 8;
+
+    private final AtomicLongArray cells;
+    private final int mask;
+
+    public StripedCounter() {
+        this(stripes());
+    }
+
+    public StripedCounter(int stripes) {
+        this.cells = new AtomicLongArray(stripes * PAD);
+        this.mask = stripes - 1;
+    }
+
+    public void add(long delta) {
+        cells.getAndAdd(stripe(mask) * PAD, delta);
+    }
+
+    public long sum() {
+        long sum = 0;
+
+        for (int i = 0; i < cells.length(); i += PAD) {
+            sum += cells.get(i);
+        }
+
+        return sum;
+    }
+
+    static int stripe(int mask) {
+        return (int) Thread.currentThread().getId() & mask;
+    }
+
+    /**
+     * @return a power of two at least the number of processors
+     */
+    static int stripes() {
+        int processors = Runtime.getRuntime().availableProcessors();
+
+        return Integer.highestOneBit(processors * 2 - 1);
+    }
+}
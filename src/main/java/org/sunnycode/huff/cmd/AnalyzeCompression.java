@@ -18,13 +18,27 @@
 package org.sunnycode.huff.cmd;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Scanner;
 
 import org.sunnycode.huff.HuffmanCodec;
+import org.sunnycode.huff.ParallelCodec;
 import org.sunnycode.huff.model.TextModel;
 
 public class AnalyzeCompression {
     public static void main(String[] args) throws Exception {
+        if (Boolean.getBoolean("mmap")) {
+            for (String file : args) {
+                analyzeMapped(file);
+            }
+
+            return;
+        }
+
         for (String file : args) {
             System.out.println("tt: " + System.currentTimeMillis());
 
@@ -77,6 +91,62 @@ public class AnalyzeCompression {
         }
     }
 
+    /**
+     * Trains on a memory-mapped file, then compresses and decompresses it in
+     * parallel blocks, one mapped window of at most 2GB at a time.
+     */
+    private static void analyzeMapped(String file) throws Exception {
+        System.out.println("tt: " + System.currentTimeMillis());
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            TextModel.Builder b = new TextModel.Builder(Integer
+                    .parseInt(System.getProperty("c", "3")));
+
+            for (long done = 0; done < size; done += Integer.MAX_VALUE) {
+                b.scan(map(channel, done, size));
+            }
+
+            TextModel d = b.build();
+
+            System.out.println("tt: " + System.currentTimeMillis());
+
+            long tc = 0;
+            long ec = 0;
+
+            for (long done = 0; done < size; done += Integer.MAX_VALUE) {
+                MappedByteBuffer buf = map(channel, done, size);
+                byte[] enc = ParallelCodec.encode(buf, d);
+                byte[] dec = ParallelCodec.decode(enc, d);
+
+                buf.rewind();
+                if (!ByteBuffer.wrap(dec).equals(buf)) {
+                    System.out.println("ouch: " + file + " at " + done
+                            + " did not round-trip");
+                }
+
+                tc += dec.length;
+                ec += enc.length;
+            }
+
+            System.out.println("tt: " + System.currentTimeMillis());
+            System.out.println("o=" + tc + ",e=" + ec + ",save="
+                    + (1 - ((double) ec) / ((double) tc)));
+            System.out.println("dict size: " + d.getDictionary().size());
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, long offset,
+            long size) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(
+                size - offset, Integer.MAX_VALUE));
+    }
+
     public static String bytesToBits(byte[] toencode) {
         StringBuilder encoded = new StringBuilder();
         String padding = "00000000";
@@ -17,52 +17,64 @@
  */
 package org.sunnycode.huff.cmd;
 
-import java.io.FileInputStream;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import org.codehaus.jackson.map.ObjectMapper;
 import org.sunnycode.huff.model.HuffCode;
+import org.sunnycode.huff.model.ModelFile;
+import org.sunnycode.huff.model.ParallelTrainer;
+import org.sunnycode.huff.model.SamplingTrainer;
 import org.sunnycode.huff.model.TextModel;
 
 public class AnalyzeTextModel {
     public static void main(String[] args) throws Exception {
-        TextModel.Builder b = new TextModel.Builder(Integer.parseInt(System
-                .getProperty("c", "3")));
+        int context = Integer.parseInt(System.getProperty("c", "3"));
+        int threads = Integer.parseInt(System.getProperty("threads", String
+                .valueOf(Runtime.getRuntime().availableProcessors())));
+        int split = Integer.parseInt(System.getProperty("split",
+                String.valueOf(ParallelTrainer.DEFAULT_SPLIT_SIZE)));
+        String sample = System.getProperty("sample");
+        int contexts = Integer.parseInt(System.getProperty("contexts",
+                String.valueOf(Integer.MAX_VALUE)));
 
         System.err.println("tt: " + System.currentTimeMillis());
 
-        ByteBuffer buf = ByteBuffer.allocateDirect(64 * 1024 * 1024);
-
+        List<File> files = new ArrayList<File>();
         for (String file : args) {
-            FileInputStream instream = new FileInputStream(file);
-            FileChannel channel = instream.getChannel();
+            files.add(new File(file));
+        }
+
+        TextModel d;
+
+        if (sample != null) {
+            SamplingTrainer.Result result = new SamplingTrainer(context, Long
+                    .parseLong(sample), contexts).train(files);
+
+            System.err.println("sample: " + result);
+            d = result.getModel();
+        } else {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            TextModel.Builder b;
 
-            long p = 0;
-            long s = channel.read(buf, p);
-            while (s >= 0) {
-                if (s != 0) {
-                    int x = 0;
-                    for (; x < s - 8; x += 8) {
-                        long y = buf.getLong(x);
-                        for (int z = 0; z < 8; z++) {
-                            b.scan((int) (0xFF & (y >> (z << 3))));
-                        }
-                    }
-                    for (; x < s; x++) {
-                        b.scan((int) buf.get(x));
-                    }
-                }
-                System.err.println("processed: " + s + " bytes");
-                p += s;
-                buf.rewind();
-                s = channel.read(buf, p);
+            try {
+                b = new ParallelTrainer(context, split, pool).train(files);
+            } finally {
+                pool.shutdown();
             }
-        }
 
-        System.err.println("tt: " + System.currentTimeMillis());
+            System.err.println("tt: " + System.currentTimeMillis());
 
-        TextModel d = b.build();
+            d = b.build();
+        }
+
+        String out = System.getProperty("out");
+        if (out != null) {
+            ModelFile.write(d, new File(out));
+            System.err.println("wrote: " + out);
+        }
 
         ObjectMapper mapper = new ObjectMapper();
 
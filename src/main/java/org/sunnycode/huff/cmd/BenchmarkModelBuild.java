@@ -0,0 +1,86 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sunnycode.huff.cmd;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.sunnycode.huff.model.TextModel;
+
+/**
+ * Times model construction over a synthetic Zipf-distributed alphabet of
+ * 3-byte printable symbols. Use -Dn for the number of symbols, -Di for the
+ * number of timed runs and -Dl for a code length limit (0 for classic
+ * codes).
+ */
+public class BenchmarkModelBuild {
+    public static void main(String[] args) throws Exception {
+        int n = Integer.parseInt(System.getProperty("n", "200000"));
+        int iterations = Integer.parseInt(System.getProperty("i", "10"));
+        int maxCodeLength = Integer.parseInt(System.getProperty("l", "0"));
+
+        Map<Integer, Long> freq = zipf(n, new Random(42));
+
+        for (int warm = 0; warm < 3; warm++) {
+            build(freq, maxCodeLength);
+        }
+
+        long best = Long.MAX_VALUE;
+        long total = 0;
+
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            TextModel d = build(freq, maxCodeLength);
+            long elapsed = System.nanoTime() - start;
+
+            best = Math.min(best, elapsed);
+            total += elapsed;
+
+            System.out.println("run " + i + ": " + (elapsed / 1000000)
+                    + " ms, maxBits=" + d.getMaxBits());
+        }
+
+        System.out.println("symbols=" + freq.size() + ",best="
+                + (best / 1000000) + "ms,mean="
+                + (total / iterations / 1000000) + "ms");
+    }
+
+    private static TextModel build(Map<Integer, Long> freq, int maxCodeLength) {
+        if (maxCodeLength == 0) {
+            return new TextModel(freq, 0L, 3);
+        }
+
+        return new TextModel(freq, 0L, 3, maxCodeLength);
+    }
+
+    private static Map<Integer, Long> zipf(int n, Random random) {
+        Map<Integer, Long> freq = new LinkedHashMap<Integer, Long>();
+
+        while (freq.size() < n) {
+            int sym = (32 + random.nextInt(95)) | (32 + random.nextInt(95)) << 8
+                    | (32 + random.nextInt(95)) << 16;
+
+            if (!freq.containsKey(sym)) {
+                freq.put(sym, 1L + 100000000L / (freq.size() + 1));
+            }
+        }
+
+        return freq;
+    }
+}
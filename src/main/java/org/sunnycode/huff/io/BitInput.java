@@ -17,34 +17,194 @@
  */
 package org.sunnycode.huff.io;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.LongBuffer;
+import java.nio.channels.ReadableByteChannel;
 
+/**
+ * Bit reader over a byte array, a {@link ByteBuffer} region, or an internal
+ * buffer refilled from a channel. Caller-supplied input is read in place;
+ * bits past the end of input read as zero.
+ */
 public class BitInput {
     private static final int LONG_BITS = 64;
     private static final long MASK = 0xFFFFFFFFFFFFFFFFL;
+    private static final int MIN_CAPACITY = 16;
 
-    private final ByteBuffer buf;
-    private final LongBuffer lbuf;
+    private ByteBuffer own;
+    private ByteBuffer buf;
+    private byte[] array;
+    private boolean swap;
+    private int base;
+    private int end;
     private long current;
-    private int lbufOffset;
+    private int wordOffset;
     private int curRemain;
 
+    /**
+     * Creates an input with no data, to be supplied with one of the reset
+     * methods.
+     */
+    public BitInput() {
+        this.end = 0;
+        rewind();
+    }
+
     public BitInput(byte[] initial) {
         if (initial == null || initial.length == 0) {
             throw new IllegalArgumentException("input length must be non-zero!");
         }
 
-        this.buf = ByteBuffer.allocateDirect(initial.length + 16);
-        this.buf.order(ByteOrder.BIG_ENDIAN);
-        this.buf.put(initial);
-        this.buf.rewind();
+        reset(initial, 0, initial.length);
+    }
+
+    public BitInput(ByteBuffer src) {
+        reset(src);
+    }
+
+    /**
+     * Creates an empty input with a fixed-size buffer, to be loaded
+     * incrementally with {@link #fill(ReadableByteChannel)}.
+     */
+    public BitInput(int capacity) {
+        if (capacity < MIN_CAPACITY || (capacity & 0x7) != 0) {
+            throw new IllegalArgumentException(
+                    "capacity must be a multiple of 8 and at least "
+                            + MIN_CAPACITY + "!");
+        }
+
+        this.own = ByteBuffer.allocateDirect(capacity);
+        this.own.order(ByteOrder.BIG_ENDIAN);
+        this.buf = this.own;
+        this.end = 0;
+        rewind();
+    }
+
+    /**
+     * Reads {@code len} bytes of {@code src} starting at {@code off}, in
+     * place, from the first bit.
+     */
+    public void reset(byte[] src, int off, int len) {
+        this.buf = null;
+        this.array = src;
+        this.swap = false;
+        this.base = off;
+        this.end = off + len;
+        rewind();
+    }
+
+    /**
+     * Reads the remaining bytes of {@code src}, in place, from the first bit.
+     * The position of {@code src} is not changed.
+     */
+    public void reset(ByteBuffer src) {
+        if (src.hasArray()) {
+            reset(src.array(), src.arrayOffset() + src.position(),
+                    src.remaining());
+
+            return;
+        }
+
+        this.buf = src;
+        this.array = null;
+        this.swap = src.order() != ByteOrder.BIG_ENDIAN;
+        this.base = src.position();
+        this.end = src.limit();
+        rewind();
+    }
+
+    /**
+     * Drops the input supplied by the caller, leaving no data.
+     */
+    public void release() {
+        this.buf = this.own;
+        this.array = null;
+        this.swap = false;
+        this.base = 0;
+        this.end = 0;
+        rewind();
+    }
 
-        this.lbuf = this.buf.asLongBuffer();
-        this.current = lbuf.get();
-        this.lbufOffset = 0;
+    private void rewind() {
+        this.wordOffset = 0;
         this.curRemain = LONG_BITS;
+        this.current = word(0);
+    }
+
+    /**
+     * @return the number of bits consumed so far
+     */
+    public long position() {
+        return ((long) this.wordOffset << 6) + LONG_BITS - this.curRemain;
+    }
+
+    /**
+     * Moves to bit {@code bitPos} of the input, counted from the first bit
+     * as in {@link #position()}.
+     */
+    public void seek(long bitPos) {
+        if (bitPos < 0 || bitPos > ((long) (this.end - this.base) << 3)) {
+            throw new IllegalArgumentException("Error: bit position "
+                    + bitPos + " is outside the input!");
+        }
+
+        this.wordOffset = (int) (bitPos >>> 6);
+        this.curRemain = LONG_BITS - (int) (bitPos & 0x3F);
+        this.current = word(this.wordOffset);
+    }
+
+    /**
+     * @return the number of loaded bits not yet consumed
+     */
+    public long available() {
+        return ((long) (this.end - this.base) << 3) - position();
+    }
+
+    /**
+     * Discards consumed words and reads from {@code channel} until at least
+     * two words are available past the current position, the buffer is full,
+     * the channel is exhausted, or a non-blocking channel has nothing to
+     * read right now.
+     *
+     * @return false once the channel has reached end of stream
+     */
+    public boolean fill(ReadableByteChannel channel) throws IOException {
+        if (this.own == null || this.buf != this.own) {
+            throw new IllegalStateException(
+                    "BitInput can only fill its own buffer!");
+        }
+
+        int consumed = this.wordOffset << 3;
+        int capacity = this.own.capacity();
+
+        this.own.limit(this.end);
+        this.own.position(consumed);
+        this.own.compact();
+        this.end -= consumed;
+        this.wordOffset = 0;
+
+        boolean open = true;
+
+        while (this.end < capacity && available() < 2 * LONG_BITS) {
+            int read = channel.read(this.own);
+
+            if (read < 0) {
+                open = false;
+                break;
+            }
+
+            if (read == 0) {
+                break;
+            }
+
+            this.end += read;
+        }
+
+        this.own.clear();
+        this.current = word(0);
+
+        return open;
     }
 
     public long peek(int numBits) {
@@ -60,7 +220,7 @@ public class BitInput {
         int curRem = this.curRemain;
 
         if (curRem == 0) {
-            this.current = this.lbuf.get(this.lbufOffset + 1);
+            this.current = word(this.wordOffset + 1);
             this.curRemain = curRem = LONG_BITS;
         }
 
@@ -83,7 +243,7 @@ public class BitInput {
         long secondMask = MASK >>> (LONG_BITS - secondBits);
 
         maskedActualValue |= secondMask
-                & (this.lbuf.get(this.lbufOffset + 1) >>> (LONG_BITS - secondBits));
+                & (word(this.wordOffset + 1) >>> (LONG_BITS - secondBits));
 
         return maskedActualValue;
     }
@@ -112,8 +272,44 @@ public class BitInput {
         }
 
         numBits -= this.curRemain;
-        this.lbufOffset += 1;
-        this.current = lbuf.get(this.lbufOffset);
+        this.wordOffset += 1;
+        this.current = word(this.wordOffset);
         this.curRemain = LONG_BITS - numBits;
     }
+
+    private long word(int w) {
+        int idx = this.base + (w << 3);
+
+        if (idx + 8 <= this.end) {
+            if (this.array != null) {
+                byte[] a = this.array;
+
+                return ((long) (a[idx] & 0xFF) << 56)
+                        | ((long) (a[idx + 1] & 0xFF) << 48)
+                        | ((long) (a[idx + 2] & 0xFF) << 40)
+                        | ((long) (a[idx + 3] & 0xFF) << 32)
+                        | ((long) (a[idx + 4] & 0xFF) << 24)
+                        | ((long) (a[idx + 5] & 0xFF) << 16)
+                        | ((long) (a[idx + 6] & 0xFF) << 8)
+                        | ((long) (a[idx + 7] & 0xFF));
+            }
+
+            long value = this.buf.getLong(idx);
+
+            return this.swap ? Long.reverseBytes(value) : value;
+        }
+
+        long value = 0L;
+
+        for (int i = 0; i < 8; i++) {
+            value <<= 8;
+
+            if (idx + i < this.end) {
+                value |= (this.array != null ? this.array[idx + i] : this.buf
+                        .get(idx + i)) & 0xFF;
+            }
+        }
+
+        return value;
+    }
 }
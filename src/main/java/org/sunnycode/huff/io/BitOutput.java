@@ -17,28 +17,148 @@
  */
 package org.sunnycode.huff.io;
 
+import java.io.IOException;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.LongBuffer;
+import java.nio.channels.WritableByteChannel;
 
 public class BitOutput {
     private static final int LONG_BITS = 64;
-    private final ByteBuffer buf;
-    private final LongBuffer lbuf;
+    private ByteBuffer own;
+    private ByteBuffer buf;
+    private byte[] array;
+    private boolean swap;
+    private int base;
+    private int pos;
+    private int end;
     private long current;
     private long totalBits;
+    private long drained;
     private int offset;
     private int remain;
     private boolean closed;
 
     public BitOutput(int maxSize) {
-        this.buf = ByteBuffer.allocateDirect(maxSize);
-        this.buf.order(ByteOrder.BIG_ENDIAN);
-        this.lbuf = this.buf.asLongBuffer();
+        allocate(maxSize);
+        reset();
+    }
+
+    /**
+     * Discards all output so the buffer can be reused.
+     */
+    public void reset() {
+        this.buf = this.own;
+        this.array = null;
+        this.swap = false;
+        this.base = 0;
+        this.end = this.own.capacity();
+        clear();
+    }
+
+    /**
+     * Discards all output and grows the buffer if it is smaller than
+     * {@code maxSize} bytes.
+     */
+    public void reset(int maxSize) {
+        if (this.own.capacity() < maxSize) {
+            allocate(Math.max(maxSize, this.own.capacity() * 2));
+        }
+
+        reset();
+    }
+
+    /**
+     * Discards all output and targets {@code len} bytes of {@code dst}
+     * starting at {@code off}, instead of the internal buffer.
+     */
+    public void reset(byte[] dst, int off, int len) {
+        this.buf = null;
+        this.array = dst;
+        this.swap = false;
+        this.base = off;
+        this.end = off + len;
+        clear();
+    }
+
+    /**
+     * Discards all output and targets the remaining space of {@code dst},
+     * instead of the internal buffer. The position of {@code dst} is not
+     * changed.
+     */
+    public void reset(ByteBuffer dst) {
+        if (dst.hasArray()) {
+            reset(dst.array(), dst.arrayOffset() + dst.position(),
+                    dst.remaining());
+
+            return;
+        }
+
+        this.buf = dst;
+        this.array = null;
+        this.swap = dst.order() != ByteOrder.BIG_ENDIAN;
+        this.base = dst.position();
+        this.end = dst.limit();
+        clear();
+    }
+
+    /**
+     * Grows the internal buffer if needed, keeping everything written so
+     * far, so that at least {@code bytes} more bytes fit.
+     */
+    public void ensureRemaining(int bytes) {
+        if (this.pos + bytes <= this.end) {
+            return;
+        }
+
+        if (this.buf != this.own) {
+            throw new IllegalStateException(
+                    "BitOutput can only grow its own buffer!");
+        }
+
+        ByteBuffer old = this.own;
+        allocate(Math.max(old.capacity() * 2, this.pos + bytes));
+
+        old.limit(this.pos);
+        old.position(0);
+        this.own.put(old);
+        this.own.clear();
+        old.clear();
+
+        this.buf = this.own;
+        this.end = this.own.capacity();
+    }
+
+    /**
+     * Discards all output, drops any buffer supplied by the caller and
+     * shrinks the internal buffer to {@code maxSize} bytes if it has grown
+     * past that.
+     */
+    public void release(int maxSize) {
+        if (this.own.capacity() > maxSize) {
+            allocate(maxSize);
+        }
+
+        reset();
+    }
+
+    public int capacity() {
+        return this.own.capacity();
+    }
+
+    private void allocate(int maxSize) {
+        this.own = ByteBuffer.allocateDirect((maxSize + 7) & ~7);
+        this.own.order(ByteOrder.BIG_ENDIAN);
+    }
+
+    private void clear() {
+        this.pos = this.base;
         this.current = 0L;
         this.totalBits = 0L;
+        this.drained = 0L;
         this.offset = 0;
         this.remain = LONG_BITS;
+        this.closed = false;
     }
 
     public void writeBits(long value, int numBits) {
@@ -54,7 +174,7 @@ public class BitOutput {
 
         if (newRem == 0) {
             this.current |= value;
-            this.lbuf.put(this.current);
+            putWord(this.current);
             this.current = 0L;
             this.offset = 0;
             this.remain = LONG_BITS;
@@ -69,7 +189,7 @@ public class BitOutput {
             long loVal = value << (LONG_BITS - hiBits);
 
             this.current |= hiVal;
-            this.lbuf.put(this.current);
+            putWord(this.current);
             this.current = loVal;
             this.offset = -1 * newRem;
             this.remain = LONG_BITS - hiBits;
@@ -78,25 +198,133 @@ public class BitOutput {
         this.totalBits += numBits;
     }
 
+    /**
+     * @return the number of bits written so far
+     */
+    public long bitLength() {
+        return this.totalBits;
+    }
+
+    /**
+     * Writes all completed 64-bit words to {@code channel} and frees their
+     * space in the internal buffer. The partial word stays buffered.
+     */
+    public void drainTo(WritableByteChannel channel) throws IOException {
+        writeTo(channel, this.pos - this.base);
+    }
+
+    /**
+     * Finishes the output and writes everything not yet drained to
+     * {@code channel}.
+     */
+    public void finishTo(WritableByteChannel channel) throws IOException {
+        close();
+
+        writeTo(channel, undrainedBytes());
+    }
+
     public byte[] finish() {
+        close();
+
+        byte[] toReturn = new byte[undrainedBytes()];
+
+        if (this.array != null) {
+            System.arraycopy(this.array, this.base, toReturn, 0,
+                    toReturn.length);
+        } else {
+            for (int i = 0; i < toReturn.length; i++) {
+                toReturn[i] = this.buf.get(this.base + i);
+            }
+        }
+
+        return toReturn;
+    }
+
+    /**
+     * Finishes the output in place.
+     *
+     * @return the number of bytes written to the target
+     */
+    public int complete() {
+        close();
+
+        return undrainedBytes();
+    }
+
+    private void close() {
         if (!this.closed) {
             this.closed = true;
 
-            if (this.offset > 0) {
-                this.lbuf.put(this.current);
+            int bytes = (this.offset + 7) >>> 3;
+
+            if (this.pos + bytes > this.end) {
+                throw new BufferOverflowException();
+            }
+
+            for (int i = 0; i < bytes; i++) {
+                putByte(this.pos + i, (byte) (this.current >>> (56 - 8 * i)));
             }
         }
+    }
 
-        int todo = (int) this.totalBits >>> 3;
+    private void putWord(long word) {
+        int p = this.pos;
+
+        if (p + 8 > this.end) {
+            throw new BufferOverflowException();
+        }
+
+        if (this.array != null) {
+            byte[] a = this.array;
+            a[p] = (byte) (word >>> 56);
+            a[p + 1] = (byte) (word >>> 48);
+            a[p + 2] = (byte) (word >>> 40);
+            a[p + 3] = (byte) (word >>> 32);
+            a[p + 4] = (byte) (word >>> 24);
+            a[p + 5] = (byte) (word >>> 16);
+            a[p + 6] = (byte) (word >>> 8);
+            a[p + 7] = (byte) word;
+        } else {
+            this.buf.putLong(p, this.swap ? Long.reverseBytes(word) : word);
+        }
+
+        this.pos = p + 8;
+    }
+
+    private void putByte(int index, byte b) {
+        if (this.array != null) {
+            this.array[index] = b;
+        } else {
+            this.buf.put(index, b);
+        }
+    }
+
+    private int undrainedBytes() {
+        long todo = this.totalBits >>> 3;
 
         if ((this.totalBits & 0x7) != 0) {
             todo += 1;
         }
 
-        byte[] toReturn = new byte[todo];
-        this.buf.rewind();
-        this.buf.get(toReturn);
+        return (int) (todo - this.drained);
+    }
 
-        return toReturn;
+    private void writeTo(WritableByteChannel channel, int bytes)
+            throws IOException {
+        if (this.buf != this.own) {
+            throw new IllegalStateException(
+                    "BitOutput can only drain its own buffer!");
+        }
+
+        this.own.clear();
+        this.own.limit(bytes);
+
+        while (this.own.hasRemaining()) {
+            channel.write(this.own);
+        }
+
+        this.own.clear();
+        this.pos = this.base;
+        this.drained += bytes;
     }
 }
@@ -0,0 +1,121 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sunnycode.huff.io;
+
+/**
+ * Unsigned LEB128 varints: 7 bits per byte, low bits first, high bit set on
+ * all but the last byte.
+ */
+public class Varint {
+    public static final int MAX_LONG_SIZE = 10;
+
+    private Varint() {
+    }
+
+    public static int size(long value) {
+        int size = 1;
+
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size += 1;
+        }
+
+        return size;
+    }
+
+    /**
+     * @return the offset just past the written value
+     */
+    public static int write(byte[] dst, int off, long value) {
+        while ((value & ~0x7FL) != 0) {
+            dst[off++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+
+        dst[off++] = (byte) value;
+
+        return off;
+    }
+
+    /**
+     * Reads the value at {@code off}; it occupies {@link #size(long)} bytes.
+     */
+    public static long read(byte[] src, int off) {
+        long value = 0L;
+        int shift = 0;
+
+        while (true) {
+            if (shift >= 64) {
+                throw new IllegalArgumentException("malformed varint!");
+            }
+
+            byte b = src[off++];
+            value |= (long) (b & 0x7F) << shift;
+
+            if (b >= 0) {
+                return value;
+            }
+
+            shift += 7;
+        }
+    }
+
+    /**
+     * Reads a value of at most 31 bits from {@code src} between {@code off}
+     * and {@code end}, without trusting the input.
+     *
+     * @return the value in the low 32 bits and the number of bytes read in
+     *         the high 32 bits, or -1 if the input ends inside the value,
+     *         the value is longer than 5 bytes or exceeds
+     *         {@link Integer#MAX_VALUE}
+     */
+    public static long readInt(byte[] src, int off, int end) {
+        long value = 0L;
+
+        for (int i = 0; i < 5; i++) {
+            if (off + i >= end) {
+                return -1L;
+            }
+
+            byte b = src[off + i];
+            value |= (long) (b & 0x7F) << (7 * i);
+
+            if (b >= 0) {
+                return (value > Integer.MAX_VALUE) ? -1L
+                        : ((long) (i + 1) << 32) | value;
+            }
+        }
+
+        return -1L;
+    }
+
+    /**
+     * @return the value of a result of {@link #readInt(byte[], int, int)}
+     */
+    public static int value(long read) {
+        return (int) read;
+    }
+
+    /**
+     * @return the bytes read for a result of
+     *         {@link #readInt(byte[], int, int)}
+     */
+    public static int length(long read) {
+        return (int) (read >>> 32);
+    }
+}
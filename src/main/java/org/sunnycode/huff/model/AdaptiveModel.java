@@ -0,0 +1,142 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sunnycode.huff.model;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Symbol statistics that evolve with the data coded. The symbol set is fixed
+ * by the initial model; after every record both ends count the symbols of
+ * the plain record, and once {@code interval} symbols have been seen since
+ * the last rebuild they derive new canonical codes from the counts and halve
+ * them. The same records in the same order give the same models on both
+ * ends, so no model is ever sent.
+ */
+public class AdaptiveModel {
+    public static final int DEFAULT_INTERVAL = 64 * 1024;
+
+    private final TextModel initial;
+    private final EncodeTable parse;
+    private final int[] symbols;
+    private final ContextCounts counts;
+    private final EncodeTable.Tokens counter = new EncodeTable.Tokens() {
+        public void token(int sym, int width) {
+            counts.add(sym, 1);
+            pending += 1;
+        }
+    };
+    private final int interval;
+    private final int maxCodeLength;
+    private TextModel current;
+    private long pending;
+    private int generation;
+
+    public AdaptiveModel(TextModel initial) {
+        this(initial, DEFAULT_INTERVAL);
+    }
+
+    public AdaptiveModel(TextModel initial, int interval) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("interval must be positive!");
+        }
+
+        Map<Integer, HuffCode> dictionary = initial.getDictionary();
+
+        this.initial = initial;
+        this.parse = initial.getEncodeTable();
+        this.symbols = new int[dictionary.size()];
+        this.counts = new ContextCounts();
+        this.interval = interval;
+        this.current = initial;
+
+        int bits = 1;
+        while ((1 << bits) < symbols.length) {
+            bits += 1;
+        }
+
+        this.maxCodeLength = Math.max(24, bits + 1);
+
+        // seed with the initial model's distribution, implied by its code
+        // lengths, scaled to one interval's worth of symbols
+        int i = 0;
+
+        for (HuffCode code : dictionary.values()) {
+            symbols[i++] = code.getSource();
+            counts.add(code.getSource(), Math.max(1L,
+                    (long) interval >> Math.min(code.getTargetNumBits(), 62)));
+        }
+    }
+
+    public TextModel getInitial() {
+        return initial;
+    }
+
+    /**
+     * @return the model to code the next record with
+     */
+    public TextModel current() {
+        return current;
+    }
+
+    /**
+     * @return the number of rebuilds so far
+     */
+    public int generation() {
+        return generation;
+    }
+
+    /**
+     * Counts the symbols of a record just coded with {@link #current()},
+     * including its EOF, and rebuilds the model if one is due.
+     *
+     * @return true if the model was rebuilt
+     */
+    public boolean update(byte[] src, int off, int len) {
+        parse.parse(src, off, len, counter);
+
+        counts.add(TextModel.EOF, 1);
+        pending += 1;
+
+        if (pending < interval) {
+            return false;
+        }
+
+        rebuild();
+
+        return true;
+    }
+
+    private void rebuild() {
+        Map<Integer, Long> freq = new LinkedHashMap<Integer, Long>();
+
+        for (int sym : symbols) {
+            freq.put(sym, counts.get(sym));
+        }
+
+        current = new TextModel(freq, 0L, initial.getContext(), maxCodeLength);
+
+        for (int sym : symbols) {
+            long c = counts.get(sym);
+            counts.add(sym, (c >> 1) - c + 1);
+        }
+
+        pending = 0;
+        generation += 1;
+    }
+}
@@ -0,0 +1,170 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sunnycode.huff.model;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Code length computation and canonical code assignment.
+ */
+public class CodeLengths {
+    private CodeLengths() {
+    }
+
+    /**
+     * Computes optimal code lengths no longer than {@code maxLength} using the
+     * package-merge algorithm.
+     *
+     * @return code lengths, in the same order as {@code weights}
+     */
+    public static int[] limited(final long[] weights, int maxLength) {
+        int n = weights.length;
+        int[] lengths = new int[n];
+
+        if (n == 0) {
+            return lengths;
+        }
+
+        if (n == 1) {
+            lengths[0] = 1;
+
+            return lengths;
+        }
+
+        if (maxLength < 1 || (maxLength < 31 && n > (1 << maxLength))) {
+            throw new IllegalArgumentException("Error: " + n
+                    + " symbols cannot fit in codes of " + maxLength + " bits!");
+        }
+
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer o1, Integer o2) {
+                long w1 = weights[o1];
+                long w2 = weights[o2];
+
+                return w1 < w2 ? -1 : (w1 > w2 ? 1 : o1.compareTo(o2));
+            }
+        });
+
+        long[] leaves = new long[n];
+        for (int i = 0; i < n; i++) {
+            leaves[i] = weights[order[i]];
+        }
+
+        // isLeaf[j] describes the merged list at depth j + 1; the deepest
+        // list holds leaves only
+        boolean[][] isLeaf = new boolean[maxLength][];
+        long[] prev = leaves;
+        isLeaf[maxLength - 1] = new boolean[n];
+        Arrays.fill(isLeaf[maxLength - 1], true);
+
+        for (int j = maxLength - 2; j >= 0; j--) {
+            int packages = prev.length / 2;
+            long[] merged = new long[n + packages];
+            boolean[] flags = new boolean[n + packages];
+            int l = 0;
+            int p = 0;
+
+            for (int k = 0; k < merged.length; k++) {
+                long pw = (p < packages) ? prev[2 * p] + prev[2 * p + 1]
+                        : Long.MAX_VALUE;
+
+                if (l < n && leaves[l] <= pw) {
+                    merged[k] = leaves[l++];
+                    flags[k] = true;
+                } else {
+                    merged[k] = pw;
+                    p++;
+                }
+            }
+
+            isLeaf[j] = flags;
+            prev = merged;
+        }
+
+        // select the 2n - 2 cheapest items at the top level; each selected
+        // package selects its two children at the level below
+        int take = 2 * n - 2;
+
+        for (int j = 0; j < maxLength && take > 0; j++) {
+            int leafCount = 0;
+
+            for (int k = 0; k < take; k++) {
+                if (isLeaf[j][k]) {
+                    leafCount += 1;
+                }
+            }
+
+            for (int i = 0; i < leafCount; i++) {
+                lengths[order[i]] += 1;
+            }
+
+            take = 2 * (take - leafCount);
+        }
+
+        return lengths;
+    }
+
+    /**
+     * Assigns canonical codes: shorter codes first, ties broken by ascending
+     * symbol value.
+     *
+     * @return codes, in the same order as {@code symbols}
+     */
+    public static long[] canonical(final int[] symbols, final int[] lengths) {
+        int n = symbols.length;
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer o1, Integer o2) {
+                if (lengths[o1] != lengths[o2]) {
+                    return lengths[o1] < lengths[o2] ? -1 : 1;
+                }
+
+                return symbols[o1] < symbols[o2] ? -1
+                        : (symbols[o1] > symbols[o2] ? 1 : 0);
+            }
+        });
+
+        long[] codes = new long[n];
+        long code = 0;
+        int prevLength = 0;
+
+        for (int i = 0; i < n; i++) {
+            int idx = order[i];
+
+            if (i > 0) {
+                code += 1;
+            }
+
+            code <<= (lengths[idx] - prevLength);
+            prevLength = lengths[idx];
+            codes[idx] = code;
+        }
+
+        return codes;
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sunnycode.huff.model;
+
+/**
+ * Open-addressed hash of counts keyed by packed context. A key holds up to
+ * three bytes, first byte in the low bits, with the context length in the
+ * top byte, so no valid key is 0. Entries are never removed; a count of 0
+ * reads the same as an absent key.
+ */
+class ContextCounts {
+    private static final int LEN_SHIFT = 24;
+    private static final int[] MASKS = { 0, 0xFF, 0xFFFF, 0xFFFFFF };
+
+    private int[] keys;
+    private long[] counts;
+    private int shift;
+    private int size;
+
+    public ContextCounts() {
+        this(10);
+    }
+
+    public ContextCounts(int bits) {
+        this.keys = new int[1 << bits];
+        this.counts = new long[1 << bits];
+        this.shift = 32 - bits;
+        this.size = 0;
+    }
+
+    public static int key(int path, int len) {
+        return (path & MASKS[len]) | (len << LEN_SHIFT);
+    }
+
+    public static int path(int key) {
+        return key & MASKS[3];
+    }
+
+    public static int length(int key) {
+        return key >>> LEN_SHIFT;
+    }
+
+    /**
+     * @return the key of the context one byte shorter than {@code key}
+     */
+    public static int parent(int key) {
+        int len = length(key) - 1;
+
+        return key(key, len);
+    }
+
+    /**
+     * Adds {@code delta} to the counts of each prefix of the first
+     * {@code len} bytes of {@code path}.
+     */
+    public void addPrefixes(int path, int len, long delta) {
+        for (int l = 1; l <= len; l++) {
+            add(key(path, l), delta);
+        }
+    }
+
+    public void add(int key, long delta) {
+        int mask = keys.length - 1;
+        int idx = (key * 0x9E3779B9) >>> shift;
+
+        while (true) {
+            int k = keys[idx];
+
+            if (k == key) {
+                counts[idx] += delta;
+
+                return;
+            }
+
+            if (k == 0) {
+                break;
+            }
+
+            idx = (idx + 1) & mask;
+        }
+
+        keys[idx] = key;
+        counts[idx] = delta;
+        size += 1;
+
+        if (size * 2 > keys.length) {
+            grow();
+        }
+    }
+
+    public long get(int key) {
+        int idx = indexOf(key);
+
+        return (idx < 0) ? 0L : counts[idx];
+    }
+
+    /**
+     * @return the slot holding {@code key}, or -1 if absent
+     */
+    public int indexOf(int key) {
+        int mask = keys.length - 1;
+        int idx = (key * 0x9E3779B9) >>> shift;
+
+        while (true) {
+            int k = keys[idx];
+
+            if (k == key) {
+                return idx;
+            }
+
+            if (k == 0) {
+                return -1;
+            }
+
+            idx = (idx + 1) & mask;
+        }
+    }
+
+    public void addAll(ContextCounts other) {
+        for (int i = 0; i < other.keys.length; i++) {
+            if (other.keys[i] != 0 && other.counts[i] != 0) {
+                add(other.keys[i], other.counts[i]);
+            }
+        }
+    }
+
+    /**
+     * @return the number of slots, for iteration with {@link #keyAt(int)}
+     */
+    public int capacity() {
+        return keys.length;
+    }
+
+    /**
+     * @return the key in slot {@code i}, or 0 if the slot is empty
+     */
+    public int keyAt(int i) {
+        return keys[i];
+    }
+
+    public long countAt(int i) {
+        return counts[i];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        long[] oldCounts = counts;
+
+        this.keys = new int[oldKeys.length * 2];
+        this.counts = new long[oldKeys.length * 2];
+        this.shift -= 1;
+        this.size = 0;
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                add(oldKeys[i], oldCounts[i]);
+            }
+        }
+    }
+}
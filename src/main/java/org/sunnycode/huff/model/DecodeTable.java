@@ -0,0 +1,201 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sunnycode.huff.model;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Multi-level lookup table for Huffman decoding. The root table is indexed by
+ * the next {@code rootBits} bits of input; codes longer than that chain into
+ * sub-tables indexed by the following bits.
+ *
+ * Each entry is a packed int: for a leaf, {@code (symbol << 8) | codeLength};
+ * for a sub-table link, {@code (offset << 8) | LINK | subTableBits}. Zero
+ * marks a bit pattern that is not a valid code.
+ */
+public class DecodeTable {
+    public static final int DEFAULT_ROOT_BITS = 10;
+    public static final int LINK = 0x80;
+    private static final int LEN_MASK = 0x7F;
+
+    private final int[] table;
+    private final int rootBits;
+    private final int maxBits;
+
+    public DecodeTable(Collection<HuffCode> codes, int maxBits, int rootBits) {
+        if (maxBits >= 64) {
+            throw new IllegalArgumentException(
+                    "Error: maxBits must be less than 64!");
+        }
+
+        if (rootBits < 1) {
+            throw new IllegalArgumentException(
+                    "Error: rootBits must be positive!");
+        }
+
+        this.maxBits = maxBits;
+        this.rootBits = Math.min(rootBits, maxBits);
+
+        IntArray out = new IntArray(1 << this.rootBits);
+        fill(out, new ArrayList<HuffCode>(codes), 0, this.rootBits);
+
+        this.table = out.toArray();
+    }
+
+    /**
+     * Reads a table written by {@link #writeTo(ByteBuffer)}.
+     */
+    DecodeTable(ByteBuffer buf, int maxBits, int rootBits, int size) {
+        this.maxBits = maxBits;
+        this.rootBits = rootBits;
+        this.table = new int[size];
+
+        buf.asIntBuffer().get(table);
+        buf.position(buf.position() + size * 4);
+    }
+
+    void writeTo(ByteBuffer buf) {
+        buf.asIntBuffer().put(table);
+        buf.position(buf.position() + table.length * 4);
+    }
+
+    public int getMaxBits() {
+        return maxBits;
+    }
+
+    public int getRootBits() {
+        return rootBits;
+    }
+
+    public int size() {
+        return table.length;
+    }
+
+    /**
+     * Resolves the code at the front of {@code window}, which must hold the
+     * next {@link #getMaxBits()} bits of input (right-aligned, zero padded
+     * past the end of input).
+     *
+     * @return packed {@code (symbol << 8) | codeLength}, or 0 if no code
+     *         matches
+     */
+    public int lookup(long window) {
+        int shift = maxBits - rootBits;
+        int e = table[(int) (window >>> shift)];
+
+        while ((e & LINK) != 0) {
+            int bits = e & LEN_MASK;
+            shift -= bits;
+            e = table[(e >>> 8) + (int) ((window >>> shift) & ((1 << bits) - 1))];
+        }
+
+        return e;
+    }
+
+    public static int symbol(int entry) {
+        return entry >>> 8;
+    }
+
+    public static int codeLength(int entry) {
+        return entry & LEN_MASK;
+    }
+
+    private int fill(IntArray out, List<HuffCode> codes, int consumed, int bits) {
+        int base = out.extend(1 << bits);
+        Map<Integer, List<HuffCode>> longer = new LinkedHashMap<Integer, List<HuffCode>>();
+
+        for (HuffCode code : codes) {
+            int remain = code.getTargetNumBits() - consumed;
+            long target = code.getTarget();
+
+            if (remain <= bits) {
+                int idx = (int) (target & ((1L << remain) - 1)) << (bits - remain);
+                int entry = (code.getSource() << 8) | code.getTargetNumBits();
+
+                for (int i = 0; i < (1 << (bits - remain)); i++) {
+                    out.set(base + idx + i, entry);
+                }
+            } else {
+                int idx = (int) ((target >>> (remain - bits)) & ((1 << bits) - 1));
+                List<HuffCode> sub = longer.get(idx);
+
+                if (sub == null) {
+                    sub = new ArrayList<HuffCode>();
+                    longer.put(idx, sub);
+                }
+
+                sub.add(code);
+            }
+        }
+
+        for (Map.Entry<Integer, List<HuffCode>> entry : longer.entrySet()) {
+            int subMax = 0;
+
+            for (HuffCode code : entry.getValue()) {
+                subMax = Math.max(subMax, code.getTargetNumBits() - consumed
+                        - bits);
+            }
+
+            int subBits = Math.min(subMax, rootBits);
+            int offset = fill(out, entry.getValue(), consumed + bits, subBits);
+
+            out.set(base + entry.getKey(), (offset << 8) | LINK | subBits);
+        }
+
+        return base;
+    }
+
+    private static class IntArray {
+        private int[] values;
+        private int size;
+
+        public IntArray(int initial) {
+            this.values = new int[Math.max(initial, 16)];
+        }
+
+        public int extend(int count) {
+            int base = size;
+
+            if (size + count > values.length) {
+                int[] grown = new int[Math.max(values.length * 2, size + count)];
+                System.arraycopy(values, 0, grown, 0, size);
+                values = grown;
+            }
+
+            size += count;
+
+            return base;
+        }
+
+        public void set(int index, int value) {
+            values[index] = value;
+        }
+
+        public int[] toArray() {
+            int[] result = new int[size];
+            System.arraycopy(values, 0, result, 0, size);
+
+            return result;
+        }
+    }
+}
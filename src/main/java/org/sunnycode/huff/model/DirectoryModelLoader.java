@@ -0,0 +1,110 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sunnycode.huff.model;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+/**
+ * Loads models stored as {@code <dir>/<id>/<version>.model} in the
+ * {@link ModelFile} format.
+ */
+public class DirectoryModelLoader implements ModelLoader {
+    private static final String SUFFIX = ".model";
+
+    private final File dir;
+
+    public DirectoryModelLoader(File dir) {
+        this.dir = dir;
+    }
+
+    public TextModel load(int id, int version) throws IOException {
+        File file = file(id, version);
+
+        if (!file.isFile()) {
+            throw new FileNotFoundException("Error: no model " + id + " v"
+                    + version + " in " + dir + "!");
+        }
+
+        return ModelFile.load(file);
+    }
+
+    /**
+     * Stores {@code d} as the next version of model {@code id}.
+     *
+     * @return the assigned version
+     */
+    public synchronized int save(int id, TextModel d) throws IOException {
+        int version = latest(id) + 1;
+        File file = file(id, version);
+
+        if (!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs()) {
+            throw new IOException("Error: cannot create " + file.getParent()
+                    + "!");
+        }
+
+        File tmp = new File(file.getParentFile(), version + SUFFIX + ".tmp");
+        ModelFile.write(d, tmp);
+
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Error: cannot rename " + tmp + "!");
+        }
+
+        return version;
+    }
+
+    /**
+     * @return the highest stored version of model {@code id}, or 0 if none
+     */
+    public int latest(int id) {
+        String[] names = new File(dir, String.valueOf(id)).list();
+        int latest = 0;
+
+        if (names == null) {
+            return latest;
+        }
+
+        for (String name : names) {
+            if (name.endsWith(SUFFIX)) {
+                try {
+                    latest = Math.max(latest, Integer.parseInt(name.substring(
+                            0, name.length() - SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // not a model file
+                }
+            }
+        }
+
+        return latest;
+    }
+
+    /**
+     * Deletes version {@code version} of model {@code id}; payloads encoded
+     * with it can no longer be decoded once it is evicted from any cache.
+     *
+     * @return true if the version existed and was deleted
+     */
+    public synchronized boolean delete(int id, int version) {
+        return file(id, version).delete();
+    }
+
+    private File file(int id, int version) {
+        return new File(new File(dir, String.valueOf(id)), version + SUFFIX);
+    }
+}
@@ -0,0 +1,492 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sunnycode.huff.model;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
+import org.sunnycode.huff.HuffmanEncodingException;
+import org.sunnycode.huff.io.BitOutput;
+
+/**
+ * Compiled encoder dictionary. Single bytes are looked up in a direct-indexed
+ * array; 2- and 3-byte tokens live in an open-addressed hash keyed by the
+ * packed token, so a greedy longest match is one walk with no allocation.
+ *
+ * Entries are packed longs: the code in the low 56 bits, the code length in
+ * the next 6 bits, and a {@link #PREFIX} flag when longer tokens extend the
+ * entry. An entry with length 0 is a prefix only.
+ *
+ * If the dictionary has a {@link TextModel#ESCAPE} code, every byte without
+ * a code of its own gets the escape code followed by the byte as its single
+ * entry, so any input encodes without leaving the main loop. The escape
+ * entry itself is kept in the hash, where no lookup of a real token can
+ * reach it.
+ */
+public class EncodeTable {
+    public static final long PREFIX = 1L << 62;
+    private static final int LEN_SHIFT = 56;
+    private static final long CODE_MASK = (1L << LEN_SHIFT) - 1;
+    private static final int WIDTH_SHIFT = 62;
+
+    private final long[] single;
+    private final int[] keys;
+    private final long[] values;
+    private final int shift;
+    private final long eof;
+    private final int maxWidth;
+    private final int escapeBits;
+
+    public EncodeTable(Collection<HuffCode> codes) {
+        this.single = new long[256];
+
+        int multi = 0;
+
+        for (HuffCode code : codes) {
+            if (code.getSource() > 0xFF) {
+                multi += 1;
+            }
+        }
+
+        int bits = 4;
+        while ((1 << bits) < multi * 4) {
+            bits += 1;
+        }
+
+        this.keys = new int[1 << bits];
+        this.values = new long[1 << bits];
+        this.shift = 32 - bits;
+
+        long eofEntry = 0L;
+        int width = 1;
+
+        for (HuffCode code : codes) {
+            int sym = code.getSource();
+            long entry = pack(code.getTarget(), code.getTargetNumBits());
+
+            if (sym == TextModel.EOF) {
+                eofEntry = entry;
+            } else if (sym == TextModel.ESCAPE) {
+                put(sym, entry);
+            } else if (sym <= 0xFF) {
+                single[sym] |= entry;
+            } else if (sym <= 0xFFFF) {
+                put(sym, entry);
+                single[sym & 0xFF] |= PREFIX;
+                width = Math.max(width, 2);
+            } else {
+                put(sym, entry);
+                put(sym & 0xFFFF, PREFIX);
+                single[sym & 0xFF] |= PREFIX;
+                width = 3;
+            }
+        }
+
+        this.eof = eofEntry;
+        this.maxWidth = width;
+        this.escapeBits = codeLength(token(TextModel.ESCAPE));
+
+        if (escapeBits != 0 && escapeBits + 8 <= TextModel.MAX_CODE_LENGTH) {
+            long escape = code(token(TextModel.ESCAPE)) << 8;
+
+            for (int b = 0; b < single.length; b++) {
+                if (codeLength(single[b]) == 0) {
+                    single[b] |= pack(escape | b, escapeBits + 8);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a table written by {@link #writeTo(ByteBuffer)}.
+     */
+    EncodeTable(ByteBuffer buf, int slots, long eof, int maxWidth) {
+        this.single = new long[256];
+        this.keys = new int[slots];
+        this.values = new long[slots];
+        this.shift = 32 - Integer.numberOfTrailingZeros(slots);
+        this.eof = eof;
+        this.maxWidth = maxWidth;
+
+        buf.asLongBuffer().get(single);
+        buf.position(buf.position() + single.length * 8);
+        buf.asLongBuffer().get(values);
+        buf.position(buf.position() + slots * 8);
+        buf.asIntBuffer().get(keys);
+        buf.position(buf.position() + slots * 4);
+
+        this.escapeBits = codeLength(token(TextModel.ESCAPE));
+    }
+
+    void writeTo(ByteBuffer buf) {
+        buf.asLongBuffer().put(single);
+        buf.position(buf.position() + single.length * 8);
+        buf.asLongBuffer().put(values);
+        buf.position(buf.position() + values.length * 8);
+        buf.asIntBuffer().put(keys);
+        buf.position(buf.position() + keys.length * 4);
+    }
+
+    /**
+     * @return the number of hash slots
+     */
+    public int slots() {
+        return keys.length;
+    }
+
+    public static long pack(long code, int numBits) {
+        if (numBits > TextModel.MAX_CODE_LENGTH) {
+            throw new IllegalArgumentException("Error: code length "
+                    + numBits + " exceeds " + TextModel.MAX_CODE_LENGTH + "!");
+        }
+
+        return ((long) numBits << LEN_SHIFT) | code;
+    }
+
+    public static long code(long entry) {
+        return entry & CODE_MASK;
+    }
+
+    public static int codeLength(long entry) {
+        return (int) (entry >>> LEN_SHIFT) & 0x3F;
+    }
+
+    /**
+     * @return the entry for a single byte, or 0 if it has no code
+     */
+    public long single(int b) {
+        return single[b];
+    }
+
+    /**
+     * @return the entry for a packed 2- or 3-byte token, or 0 if absent
+     */
+    public long token(int key) {
+        int mask = keys.length - 1;
+        int idx = (key * 0x9E3779B9) >>> shift;
+
+        while (true) {
+            int k = keys[idx];
+
+            if (k == key) {
+                return values[idx];
+            }
+
+            if (k == 0) {
+                return 0L;
+            }
+
+            idx = (idx + 1) & mask;
+        }
+    }
+
+    public long eof() {
+        return eof;
+    }
+
+    /**
+     * @return the length of the escape code, or 0 if there is none
+     */
+    public int escapeBits() {
+        return escapeBits;
+    }
+
+    /**
+     * @return the width in bytes of the longest token
+     */
+    public int getMaxWidth() {
+        return maxWidth;
+    }
+
+    /**
+     * Greedily encodes up to {@code len} bytes of {@code src}, always taking
+     * the longest token present in the dictionary. Unless {@code flush} is
+     * set, stops before any position whose match could extend past the end
+     * of the input, so that the caller can supply more input and continue.
+     *
+     * @return the number of bytes consumed
+     */
+    public int encode(byte[] src, int off, int len, boolean flush,
+            BitOutput out) {
+        int end = off + len;
+        int stop = flush ? end : end - (maxWidth - 1);
+        int i = off;
+
+        while (i < stop) {
+            int b0 = src[i] & 0xFF;
+            long m = match(b0, (i + 1 < end) ? src[i + 1] & 0xFF : 0,
+                    (i + 2 < end) ? src[i + 2] & 0xFF : 0);
+
+            write(m, b0, i - off, out);
+            i += width(m);
+        }
+
+        return i - off;
+    }
+
+    /**
+     * Same as {@link #encode(byte[], int, int, boolean, BitOutput)}, reading
+     * from absolute positions of {@code src}.
+     */
+    public int encode(ByteBuffer src, int off, int len, boolean flush,
+            BitOutput out) {
+        if (src.hasArray()) {
+            return encode(src.array(), src.arrayOffset() + off, len, flush,
+                    out);
+        }
+
+        int end = off + len;
+        int stop = flush ? end : end - (maxWidth - 1);
+        int i = off;
+
+        while (i < stop) {
+            int b0 = src.get(i) & 0xFF;
+            long m = match(b0, (i + 1 < end) ? src.get(i + 1) & 0xFF : 0,
+                    (i + 2 < end) ? src.get(i + 2) & 0xFF : 0);
+
+            write(m, b0, i - off, out);
+            i += width(m);
+        }
+
+        return i - off;
+    }
+
+    /**
+     * Reports each token of the greedy parse of {@code src} to
+     * {@code tokens}, in order. Bytes that are escaped are reported as
+     * {@link TextModel#ESCAPE}.
+     */
+    public void parse(byte[] src, int off, int len, Tokens tokens) {
+        long escape = code(token(TextModel.ESCAPE));
+        int end = off + len;
+        int i = off;
+
+        while (i < end) {
+            int b0 = src[i] & 0xFF;
+            int b1 = (i + 1 < end) ? src[i + 1] & 0xFF : 0;
+            int b2 = (i + 2 < end) ? src[i + 2] & 0xFF : 0;
+            long m = match(b0, b1, b2);
+            int width = width(m);
+            int sym = b0;
+
+            if (width == 3) {
+                sym |= (b1 << 8) | (b2 << 16);
+            } else if (width == 2) {
+                sym |= b1 << 8;
+            } else if (codeLength(m) == 0
+                    || (codeLength(m) == escapeBits + 8 && code(m) >>> 8 == escape)) {
+                sym = TextModel.ESCAPE;
+            }
+
+            tokens.token(sym, width);
+            i += width;
+        }
+    }
+
+    /**
+     * Finds the longest token at a position whose next bytes are
+     * {@code b0}, {@code b1} and {@code b2}, where bytes past the end of the
+     * input are 0. No token contains a 0 byte, so a match never reaches
+     * past the end.
+     *
+     * @return the entry of the token without its {@link #PREFIX} flag, with
+     *         the token width in the top two bits; the code length is 0 if
+     *         {@code b0} has no code
+     */
+    private long match(int b0, int b1, int b2) {
+        long entry = single[b0];
+        long width = 1;
+
+        if ((entry & PREFIX) != 0 && b1 != 0) {
+            int key = b0 | (b1 << 8);
+            long pair = token(key);
+
+            if (codeLength(pair) != 0) {
+                entry = pair;
+                width = 2;
+            }
+
+            if ((pair & PREFIX) != 0 && b2 != 0) {
+                long tri = token(key | (b2 << 16));
+
+                if (tri != 0L) {
+                    entry = tri;
+                    width = 3;
+                }
+            }
+        }
+
+        return (entry & ~PREFIX) | (width << WIDTH_SHIFT);
+    }
+
+    private static int width(long match) {
+        return (int) (match >>> WIDTH_SHIFT);
+    }
+
+    /**
+     * Counts the tokens the greedy parse of {@code src} uses into
+     * {@code mix}: escaped bytes at index 0, then 1-, 2- and 3-byte tokens at
+     * the index of their width.
+     */
+    public void countTokens(byte[] src, int off, int len, final long[] mix) {
+        parse(src, off, len, new Tokens() {
+            public void token(int sym, int width) {
+                mix[(sym == TextModel.ESCAPE) ? 0 : width] += 1;
+            }
+        });
+    }
+
+    /**
+     * Encodes all {@code len} bytes of {@code src} with the parse of least
+     * total code length, found by dynamic programming from the end of the
+     * input: the cost at each position is the cheapest of a 1-, 2- or 3-byte
+     * token there plus the cost after it. {@code scratch} must hold at least
+     * {@code len + 1} entries.
+     */
+    public void encodeOptimal(byte[] src, int off, int len, long[] scratch,
+            BitOutput out) {
+        int end = off + len;
+
+        // scratch[i] is (cost of src[off + i ..] << 2) | width of first token
+        scratch[len] = 0L;
+
+        for (int i = end - 1; i >= off; i--) {
+            int b0 = src[i] & 0xFF;
+            long entry = single[b0];
+            long best = Long.MAX_VALUE;
+
+            if (codeLength(entry) != 0) {
+                best = best(best, entry, scratch[i - off + 1], 1);
+            } else if (escapeBits != 0) {
+                best = best(best, (long) (escapeBits + 8) << LEN_SHIFT,
+                        scratch[i - off + 1], 1);
+            }
+
+            if ((entry & PREFIX) != 0 && i + 1 < end && src[i + 1] != 0) {
+                int key = b0 | ((src[i + 1] & 0xFF) << 8);
+                long pair = token(key);
+
+                if (codeLength(pair) != 0) {
+                    best = best(best, pair, scratch[i - off + 2], 2);
+                }
+
+                if ((pair & PREFIX) != 0 && i + 2 < end && src[i + 2] != 0) {
+                    long tri = token(key | ((src[i + 2] & 0xFF) << 16));
+
+                    if (codeLength(tri) != 0) {
+                        best = best(best, tri, scratch[i - off + 3], 3);
+                    }
+                }
+            }
+
+            scratch[i - off] = best;
+        }
+
+        int i = off;
+
+        while (i < end) {
+            long step = scratch[i - off];
+
+            if (step == Long.MAX_VALUE) {
+                escape(src[i] & 0xFF, i - off, out);
+            }
+
+            int width = (int) (step & 3);
+            long entry = single[src[i] & 0xFF];
+
+            if (width > 1) {
+                int key = (src[i] & 0xFF) | ((src[i + 1] & 0xFF) << 8);
+
+                if (width == 3) {
+                    key |= (src[i + 2] & 0xFF) << 16;
+                }
+
+                entry = token(key);
+            }
+
+            write(entry, src[i] & 0xFF, i - off, out);
+            i += width;
+        }
+    }
+
+    /**
+     * Writes the code of {@code entry}, or escapes {@code b} if it has none.
+     */
+    private void write(long entry, int b, int at, BitOutput out) {
+        int numBits = codeLength(entry);
+
+        if (numBits == 0) {
+            escape(b, at, out);
+        } else {
+            out.writeBits(entry & CODE_MASK, numBits);
+        }
+    }
+
+    /**
+     * Writes {@code b} as the escape code and a literal, for escape codes
+     * too long to combine with the literal in one entry.
+     */
+    private void escape(int b, int at, BitOutput out) {
+        if (escapeBits == 0) {
+            throw new HuffmanEncodingException("Error: no code for byte " + b
+                    + " at " + at + "!");
+        }
+
+        out.writeBits(code(token(TextModel.ESCAPE)), escapeBits);
+        out.writeBits(b, 8);
+    }
+
+    private static long best(long best, long entry, long rest, int width) {
+        if (rest == Long.MAX_VALUE) {
+            return best;
+        }
+
+        long cost = (((rest >>> 2) + codeLength(entry)) << 2) | width;
+
+        return cost < best ? cost : best;
+    }
+
+    public void encodeEof(BitOutput out) {
+        out.writeBits(eof & CODE_MASK, codeLength(eof));
+    }
+
+    private void put(int key, long entry) {
+        int mask = keys.length - 1;
+        int idx = (key * 0x9E3779B9) >>> shift;
+
+        while (keys[idx] != 0 && keys[idx] != key) {
+            idx = (idx + 1) & mask;
+        }
+
+        keys[idx] = key;
+        values[idx] |= entry;
+    }
+
+    /**
+     * Receives the tokens of {@link EncodeTable#parse}.
+     */
+    public interface Tokens {
+        /**
+         * @param sym
+         *            the packed token, or {@link TextModel#ESCAPE}
+         * @param width
+         *            the number of input bytes it covers
+         */
+        void token(int sym, int width);
+    }
+}
@@ -11,7 +11,7 @@ public class HuffCode {
     private final int source;
     private final int sourceNumBits;
     private final int targetNumBits;
-    private final String targetString;
+    private String targetString;
     private final long target;
     private final long frequency;
 
@@ -59,8 +59,16 @@ public class HuffCode {
         return targetNumBits;
     }
 
+    /**
+     * @return the code as a string of '0' and '1', built on first use if it
+     *         was not given
+     */
     @JsonProperty("ts")
     public String getTargetString() {
+        if (targetString == null) {
+            targetString = TextModel.toBinaryString(target, targetNumBits);
+        }
+
         return targetString;
     }
 
@@ -109,7 +117,7 @@ public class HuffCode {
     public String toString() {
         return "HuffCode{s=" + outVal(this.source) + ",sn="
                 + this.sourceNumBits + ",sx="
-                + Integer.toHexString(this.source) + ",ts=" + this.targetString
+                + Integer.toHexString(this.source) + ",ts=" + this.getTargetString()
                 + ",tn=" + this.targetNumBits + ",f=" + this.frequency + "}";
     }
 }
\ No newline at end of file
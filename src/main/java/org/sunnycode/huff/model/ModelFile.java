@@ -0,0 +1,216 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sunnycode.huff.model;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Binary model format. All values are big-endian:
+ *
+ * <pre>
+ * header   magic "HUFM", version, context, maxBits, rootBits, symbol count,
+ *          decode table size, encode table slots, max token width (ints),
+ *          reserved int, tot, EOF entry (longs)
+ * encode   256 single-byte entries, slot values (longs), slot keys (ints)
+ * decode   decode table entries (ints)
+ * symbols  per symbol: symbol, code length (ints), code (long)
+ * trailer  CRC32 of everything before it (long)
+ * </pre>
+ *
+ * The encode and decode tables are stored precomputed, so loading is a bulk
+ * copy out of the (possibly memory-mapped) buffer rather than a rebuild.
+ *
+ * Version 2 is written for models with a {@link TextModel#ESCAPE} code,
+ * whose single-byte encode entries may hold escape+literal codes that a
+ * version 1 reader would misread. Other models are written as version 1.
+ * Both versions are read.
+ */
+public class ModelFile {
+    public static final int MAGIC = 0x4855464D;
+    public static final int VERSION = 2;
+    public static final int VERSION_NO_ESCAPE = 1;
+    private static final int HEADER_SIZE = 10 * 4 + 2 * 8;
+
+    private ModelFile() {
+    }
+
+    public static void write(TextModel d, File file) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+
+        try {
+            FileChannel channel = out.getChannel();
+            ByteBuffer buf = toBuffer(d);
+
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Loads a model by memory-mapping {@code file}.
+     */
+    public static TextModel load(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+        try {
+            FileChannel channel = raf.getChannel();
+
+            return read(channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size()));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return the model serialized into a heap buffer, ready to be written
+     */
+    public static ByteBuffer toBuffer(TextModel d) {
+        DecodeTable decode = d.getDecodeTable();
+        EncodeTable encode = d.getEncodeTable();
+        Map<Integer, HuffCode> dictionary = d.getDictionary();
+
+        int size = HEADER_SIZE + 256 * 8 + encode.slots() * 12 + decode.size()
+                * 4 + dictionary.size() * 16 + 8;
+        ByteBuffer buf = ByteBuffer.allocate(size);
+
+        buf.putInt(MAGIC);
+        buf.putInt(dictionary.containsKey(TextModel.ESCAPE) ? VERSION
+                : VERSION_NO_ESCAPE);
+        buf.putInt(d.getContext());
+        buf.putInt(decode.getMaxBits());
+        buf.putInt(decode.getRootBits());
+        buf.putInt(dictionary.size());
+        buf.putInt(decode.size());
+        buf.putInt(encode.slots());
+        buf.putInt(encode.getMaxWidth());
+        buf.putInt(0);
+        buf.putLong(d.getTot());
+        buf.putLong(encode.eof());
+
+        encode.writeTo(buf);
+        decode.writeTo(buf);
+
+        for (HuffCode code : dictionary.values()) {
+            buf.putInt(code.getSource());
+            buf.putInt(code.getTargetNumBits());
+            buf.putLong(code.getTarget());
+        }
+
+        buf.putLong(checksum(buf, 0, buf.position()));
+        buf.flip();
+
+        return buf;
+    }
+
+    /**
+     * Reads a model from the remaining bytes of {@code buf}.
+     *
+     * @throws IOException
+     *             if the data is not a model in a supported version, or is
+     *             corrupt
+     */
+    public static TextModel read(ByteBuffer buf) throws IOException {
+        ByteBuffer in = buf.slice();
+
+        if (in.remaining() < HEADER_SIZE + 8 || in.getInt(0) != MAGIC) {
+            throw new IOException("Error: not a model file!");
+        }
+
+        int version = in.getInt(4);
+
+        if (version != VERSION && version != VERSION_NO_ESCAPE) {
+            throw new IOException("Error: unsupported model version "
+                    + version + "!");
+        }
+
+        int end = in.limit() - 8;
+
+        if (checksum(in, 0, end) != in.getLong(end)) {
+            throw new IOException("Error: model checksum mismatch!");
+        }
+
+        in.position(8);
+
+        int context = in.getInt();
+        int maxBits = in.getInt();
+        int rootBits = in.getInt();
+        int count = in.getInt();
+        int decodeSize = in.getInt();
+        int slots = in.getInt();
+        int maxWidth = in.getInt();
+        in.getInt();
+        long tot = in.getLong();
+        long eof = in.getLong();
+
+        if (HEADER_SIZE + 256 * 8 + (long) slots * 12 + (long) decodeSize * 4
+                + (long) count * 16 != end) {
+            throw new IOException("Error: model file has bad length!");
+        }
+
+        EncodeTable encode = new EncodeTable(in, slots, eof, maxWidth);
+        DecodeTable decode = new DecodeTable(in, maxBits, rootBits, decodeSize);
+        Map<Integer, HuffCode> dictionary = new LinkedHashMap<Integer, HuffCode>();
+
+        for (int i = 0; i < count; i++) {
+            int sym = in.getInt();
+            int length = in.getInt();
+            long code = in.getLong();
+
+            dictionary.put(sym, new HuffCode(sym,
+                    TextModel.byteWidth(sym) * 8, null, code, length, 0L));
+        }
+
+        if (version == VERSION_NO_ESCAPE
+                && dictionary.containsKey(TextModel.ESCAPE)) {
+            throw new IOException("Error: version 1 model has an escape code!");
+        }
+
+        buf.position(buf.position() + in.limit());
+
+        return new TextModel(context, tot, dictionary, decode, encode);
+    }
+
+    private static long checksum(ByteBuffer buf, int from, int to) {
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[8192];
+        ByteBuffer view = buf.duplicate();
+
+        view.limit(to);
+        view.position(from);
+
+        while (view.hasRemaining()) {
+            int n = Math.min(chunk.length, view.remaining());
+            view.get(chunk, 0, n);
+            crc.update(chunk, 0, n);
+        }
+
+        return crc.getValue();
+    }
+}
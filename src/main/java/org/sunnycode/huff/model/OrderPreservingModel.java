@@ -0,0 +1,485 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sunnycode.huff.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.sunnycode.huff.HuffmanEncodingException;
+import org.sunnycode.huff.io.BitInput;
+import org.sunnycode.huff.io.BitOutput;
+
+/**
+ * Order-preserving code: for any inputs {@code a} and {@code b},
+ * {@link #compare(byte[], byte[])} of their encodings has the same sign as
+ * the unsigned lexicographic comparison of {@code a} and {@code b}, so sorted
+ * keys can be compared without decoding.
+ *
+ * The dictionary is a trie of tokens of 1 to 3 bytes (every byte value is a
+ * token). It splits the space of strings into sorted, contiguous intervals:
+ * the strings below each token that do not continue into a longer token form
+ * one interval per gap between that token's children. An interval consumes
+ * its token's bytes, so the parse follows the order of the input; the empty
+ * string is the first interval and terminates each record. Intervals get an
+ * alphabetic prefix code, assigned by weight-balanced splitting of the
+ * sorted intervals, so codes sort like their intervals. Compression is
+ * somewhat worse than {@link TextModel}.
+ */
+public class OrderPreservingModel {
+    public static final Comparator<byte[]> COMPARATOR = new Comparator<byte[]>() {
+        public int compare(byte[] a, byte[] b) {
+            return OrderPreservingModel.compare(a, b);
+        }
+    };
+
+    private static final int END = 0;
+    private static final int MAX_RETAINED = 1024 * 1024;
+    private static final ThreadLocal<Session> SESSION = new ThreadLocal<Session>();
+
+    // per trie node: interval of strings ending at the node or continuing
+    // below its first child, and its children as a slice of the child arrays
+    private final int[] nodeFirst;
+    private final int[] nodeChildStart;
+    private final int[] nodeChildCount;
+    // per child: its byte, its node, and the interval of the gap after it
+    private final byte[] childByte;
+    private final int[] childNode;
+    private final int[] childGap;
+    // per interval: the token it consumes, and its code
+    private final int[] tokens;
+    private final byte[] tokenLengths;
+    private final long[] codes;
+    private final byte[] codeLengths;
+    private final DecodeTable decodeTable;
+    private final int maxBits;
+
+    private OrderPreservingModel(Trie trie, long[] weights) {
+        this.nodeFirst = trie.nodeFirst;
+        this.nodeChildStart = trie.nodeChildStart;
+        this.nodeChildCount = trie.nodeChildCount;
+        this.childByte = trie.childByte;
+        this.childNode = trie.childNode;
+        this.childGap = trie.childGap;
+        this.tokens = Arrays.copyOf(trie.tokens, trie.intervals);
+        this.tokenLengths = Arrays.copyOf(trie.tokenLengths, trie.intervals);
+
+        int n = trie.intervals;
+        this.codes = new long[n];
+        this.codeLengths = new byte[n];
+
+        long[] sums = new long[n + 1];
+        for (int i = 0; i < n; i++) {
+            sums[i + 1] = sums[i] + weights[i];
+        }
+
+        assign(sums, 0, n, 0, 0L);
+
+        List<HuffCode> huffCodes = new ArrayList<HuffCode>(n);
+        int max = 0;
+
+        for (int i = 0; i < n; i++) {
+            huffCodes.add(new HuffCode(i, tokenLengths[i] * 8, TextModel
+                    .toBinaryString(codes[i], codeLengths[i]), codes[i],
+                    codeLengths[i], weights[i]));
+            max = Math.max(max, codeLengths[i]);
+        }
+
+        this.maxBits = max;
+        this.decodeTable = new DecodeTable(huffCodes, max,
+                DecodeTable.DEFAULT_ROOT_BITS);
+    }
+
+    /**
+     * Builds the model from the context counts of a
+     * {@link TextModel.Builder}; {@code records} weights the terminator.
+     */
+    static OrderPreservingModel build(ContextCounts counts, int records) {
+        Trie trie = new Trie(counts);
+        long[] weights = new long[trie.capacity];
+
+        trie.emit(0, 0, Math.max(records, 1), weights);
+
+        return new OrderPreservingModel(trie, weights);
+    }
+
+    /**
+     * @return the number of intervals, i.e. codes
+     */
+    public int size() {
+        return tokens.length;
+    }
+
+    public int getMaxBits() {
+        return maxBits;
+    }
+
+    public byte[] encode(byte[] src) {
+        return encode(src, 0, src.length);
+    }
+
+    public byte[] encode(byte[] src, int off, int len) {
+        long bits = ((long) len + 1) * maxBits;
+        BitOutput out = Session.local().out;
+
+        try {
+            out.reset((int) (((bits + 63) >>> 6) << 3));
+
+            int end = off + len;
+            int i = off;
+
+            while (true) {
+                int interval = match(src, i, end);
+
+                out.writeBits(codes[interval], codeLengths[interval]);
+
+                if (interval == END) {
+                    break;
+                }
+
+                i += tokenLengths[interval];
+            }
+
+            return out.finish();
+        } finally {
+            out.release(MAX_RETAINED);
+        }
+    }
+
+    public byte[] decode(byte[] src) {
+        return decode(src, 0, src.length);
+    }
+
+    public byte[] decode(byte[] src, int off, int len) {
+        Session session = Session.local();
+        BitInput in = session.in;
+        byte[] out = session.decoded;
+        int n = 0;
+
+        in.reset(src, off, len);
+
+        try {
+            while (true) {
+                int matched = decodeTable.lookup(in.peek(maxBits));
+
+                if (matched == 0
+                        || DecodeTable.codeLength(matched) > in.available()) {
+                    throw new HuffmanEncodingException(
+                            "Huffman decode failed to match token");
+                }
+
+                in.advance(DecodeTable.codeLength(matched));
+
+                int interval = DecodeTable.symbol(matched);
+
+                if (interval == END) {
+                    return Arrays.copyOf(out, n);
+                }
+
+                if (n + 3 > out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+
+                int token = tokens[interval];
+
+                for (int k = 0; k < tokenLengths[interval]; k++) {
+                    out[n++] = (byte) (token >>> (k << 3));
+                }
+            }
+        } finally {
+            in.release();
+            session.decoded = (out.length > MAX_RETAINED) ? new byte[256]
+                    : out;
+        }
+    }
+
+    /**
+     * Compares encodings as unsigned bytes, a proper prefix first.
+     */
+    public static int compare(byte[] a, byte[] b) {
+        return compare(a, 0, a.length, b, 0, b.length);
+    }
+
+    public static int compare(byte[] a, int aOff, int aLen, byte[] b,
+            int bOff, int bLen) {
+        int n = Math.min(aLen, bLen);
+
+        for (int i = 0; i < n; i++) {
+            int x = a[aOff + i] & 0xFF;
+            int y = b[bOff + i] & 0xFF;
+
+            if (x != y) {
+                return x - y;
+            }
+        }
+
+        return aLen - bLen;
+    }
+
+    /**
+     * @return the interval of the string starting at {@code i}
+     */
+    private int match(byte[] src, int i, int end) {
+        int node = 0;
+        int depth = 0;
+
+        while (true) {
+            int count = nodeChildCount[node];
+
+            if (i + depth == end || count == 0) {
+                return nodeFirst[node];
+            }
+
+            int start = nodeChildStart[node];
+            int c = src[i + depth] & 0xFF;
+            int lo = 0;
+            int hi = count;
+
+            // first child whose byte is >= c
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+
+                if ((childByte[start + mid] & 0xFF) < c) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+
+            if (lo < count && (childByte[start + lo] & 0xFF) == c) {
+                node = childNode[start + lo];
+                depth += 1;
+            } else {
+                return (lo == 0) ? nodeFirst[node] : childGap[start + lo - 1];
+            }
+        }
+    }
+
+    /**
+     * Assigns alphabetic codes to intervals {@code [lo, hi)} below the code
+     * prefix {@code code} of length {@code depth}, splitting where the weight
+     * halves, but never so unevenly that a side could not fit in the
+     * remaining code length.
+     */
+    private void assign(long[] sums, int lo, int hi, int depth, long code) {
+        if (hi - lo == 1) {
+            codes[lo] = code;
+            codeLengths[lo] = (byte) Math.max(depth, 1);
+
+            return;
+        }
+
+        long half = (sums[lo] + sums[hi]) >>> 1;
+        int k = Arrays.binarySearch(sums, lo + 1, hi, half);
+
+        if (k < 0) {
+            k = -k - 1;
+
+            if (k > lo + 1 && half - sums[k - 1] < sums[k] - half) {
+                k -= 1;
+            }
+        }
+
+        int room = TextModel.MAX_CODE_LENGTH - depth - 1;
+        long cap = (room >= 62) ? Long.MAX_VALUE : (1L << room);
+
+        k = (int) Math.max(k, Math.max(lo + 1, hi - cap));
+        k = (int) Math.min(k, Math.min(hi - 1, lo + cap));
+
+        assign(sums, lo, k, depth + 1, code << 1);
+        assign(sums, k, hi, depth + 1, (code << 1) | 1);
+    }
+
+    /**
+     * Per-thread buffers, kept between calls; inputs are released and
+     * buffers grown past {@link #MAX_RETAINED} bytes shrunk after each call.
+     */
+    private static class Session {
+        private final BitOutput out = new BitOutput(256);
+        private final BitInput in = new BitInput();
+        private byte[] decoded = new byte[256];
+
+        public static Session local() {
+            Session session = SESSION.get();
+
+            if (session == null) {
+                session = new Session();
+                SESSION.set(session);
+            }
+
+            return session;
+        }
+    }
+
+    /**
+     * Token trie, laid out in depth-first order with its intervals.
+     */
+    private static class Trie {
+        private final ContextCounts counts;
+        private final int capacity;
+        private final int[] nodeFirst;
+        private final int[] nodeChildStart;
+        private final int[] nodeChildCount;
+        private final byte[] childByte;
+        private final int[] childNode;
+        private final int[] childGap;
+        private final int[] tokens;
+        private final byte[] tokenLengths;
+        private final int[][] children;
+        private int nodes;
+        private int childSlots;
+        private int intervals;
+
+        public Trie(ContextCounts counts) {
+            this.counts = counts;
+
+            // children of each counted token, by slot; the root has all bytes
+            int tokenCount = 256;
+
+            for (int i = 0; i < counts.capacity(); i++) {
+                int key = counts.keyAt(i);
+
+                if (key != 0 && counts.countAt(i) > 0
+                        && ContextCounts.length(key) > 1) {
+                    tokenCount += 1;
+                }
+            }
+
+            int[][] kids = new int[counts.capacity()][];
+            int[] kidCounts = new int[counts.capacity()];
+
+            for (int pass = 0; pass < 2; pass++) {
+                for (int i = 0; i < counts.capacity(); i++) {
+                    int key = counts.keyAt(i);
+
+                    if (key == 0 || counts.countAt(i) <= 0
+                            || ContextCounts.length(key) < 2) {
+                        continue;
+                    }
+
+                    int parent = slot(ContextCounts.parent(key));
+
+                    if (parent < 0) {
+                        continue;
+                    }
+
+                    if (pass == 0) {
+                        kidCounts[parent] += 1;
+                    } else {
+                        if (kids[parent] == null) {
+                            kids[parent] = new int[kidCounts[parent]];
+                            kidCounts[parent] = 0;
+                        }
+
+                        int len = ContextCounts.length(key);
+                        kids[parent][kidCounts[parent]++] = (ContextCounts
+                                .path(key) >>> ((len - 1) << 3)) & 0xFF;
+                    }
+                }
+            }
+
+            for (int[] k : kids) {
+                if (k != null) {
+                    Arrays.sort(k);
+                }
+            }
+
+            this.children = kids;
+            this.capacity = 2 * tokenCount + 2;
+            this.nodeFirst = new int[tokenCount + 1];
+            this.nodeChildStart = new int[tokenCount + 1];
+            this.nodeChildCount = new int[tokenCount + 1];
+            this.childByte = new byte[tokenCount];
+            this.childNode = new int[tokenCount];
+            this.childGap = new int[tokenCount];
+            this.tokens = new int[capacity];
+            this.tokenLengths = new byte[capacity];
+        }
+
+        /**
+         * Lays out the node for token {@code path} of length {@code depth}
+         * and its subtree, adding its intervals in order.
+         *
+         * @return the node id
+         */
+        public int emit(int path, int depth, long firstWeight, long[] weights) {
+            int node = nodes++;
+            int[] kids = null;
+            long count = 0;
+
+            if (depth == 0) {
+                kids = new int[256];
+                for (int c = 0; c < 256; c++) {
+                    kids[c] = c;
+                }
+            } else {
+                int slot = slot(ContextCounts.key(path, depth));
+
+                if (slot >= 0) {
+                    kids = children[slot];
+                    count = counts.countAt(slot);
+                }
+            }
+
+            int k = (kids == null) ? 0 : kids.length;
+            int start = childSlots;
+            childSlots += k;
+
+            nodeChildStart[node] = start;
+            nodeChildCount[node] = k;
+
+            long rest = count;
+            for (int i = 0; i < k && depth > 0; i++) {
+                rest -= counts.get(ContextCounts.key(
+                        path | (kids[i] << (depth << 3)), depth + 1));
+            }
+
+            nodeFirst[node] = interval(path, depth,
+                    (depth == 0) ? firstWeight : Math.max(rest, 1L), weights);
+
+            for (int i = 0; i < k; i++) {
+                int c = kids[i];
+
+                childByte[start + i] = (byte) c;
+                childNode[start + i] = emit(path | (c << (depth << 3)),
+                        depth + 1, 0L, weights);
+
+                boolean empty = (i + 1 < k) ? kids[i + 1] == c + 1 : c == 0xFF;
+                childGap[start + i] = empty ? -1 : interval(path, depth, 1L,
+                        weights);
+            }
+
+            return node;
+        }
+
+        private int interval(int path, int depth, long weight, long[] weights) {
+            int id = intervals++;
+
+            tokens[id] = path;
+            tokenLengths[id] = (byte) depth;
+            weights[id] = weight;
+
+            return id;
+        }
+
+        private int slot(int key) {
+            return counts.indexOf(key);
+        }
+    }
+}
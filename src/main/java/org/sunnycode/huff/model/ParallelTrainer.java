@@ -0,0 +1,228 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sunnycode.huff.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Trains a {@link TextModel.Builder} over a set of files in parallel. Each
+ * file is cut into line-aligned splits, each split is memory-mapped and
+ * scanned into its own builder, and the builders are merged back in input
+ * order, so the result is the same as scanning every file sequentially.
+ * A trainer created without a pool owns its pool and must be
+ * {@link #close() closed}.
+ */
+public class ParallelTrainer {
+    public static final int DEFAULT_SPLIT_SIZE = 64 * 1024 * 1024;
+    private static final int SEEK_SIZE = 4096;
+
+    private final int contextLen;
+    private final int splitSize;
+    private final ForkJoinPool pool;
+    private final boolean ownsPool;
+
+    public ParallelTrainer(int contextLen) {
+        this(contextLen, DEFAULT_SPLIT_SIZE, new ForkJoinPool(), true);
+    }
+
+    /**
+     * @param pool
+     *            a caller-owned pool, which {@link #close()} leaves running
+     */
+    public ParallelTrainer(int contextLen, int splitSize, ForkJoinPool pool) {
+        this(contextLen, splitSize, pool, false);
+    }
+
+    private ParallelTrainer(int contextLen, int splitSize, ForkJoinPool pool,
+            boolean ownsPool) {
+        if (splitSize < 1) {
+            throw new IllegalArgumentException("splitSize must be positive!");
+        }
+
+        this.contextLen = contextLen;
+        this.splitSize = splitSize;
+        this.pool = pool;
+        this.ownsPool = ownsPool;
+    }
+
+    public TextModel.Builder train(List<File> files) throws IOException {
+        List<Split> splits = new ArrayList<Split>();
+
+        for (File file : files) {
+            split(file, splits);
+        }
+
+        if (splits.isEmpty()) {
+            return new TextModel.Builder(contextLen);
+        }
+
+        try {
+            return pool.invoke(new ScanTask(splits, 0, splits.size()));
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+
+            throw e;
+        }
+    }
+
+    /**
+     * Shuts down the pool if this trainer created it.
+     */
+    public void close() {
+        if (ownsPool) {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Scans the given buffer from its position to its limit.
+     */
+    public static void scan(ByteBuffer buf, TextModel.Builder b) {
+        b.scan(buf.duplicate());
+    }
+
+    private void split(File file, List<Split> splits) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer seek = ByteBuffer.allocate(SEEK_SIZE);
+            long size = channel.size();
+            long start = 0;
+
+            while (start < size) {
+                long end = nextLine(channel, seek, start + splitSize, size);
+
+                splits.add(new Split(file, start, end - start));
+                start = end;
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return the offset just past the first newline at or after
+     *         {@code from}, or {@code size} if there is none
+     */
+    private static long nextLine(FileChannel channel, ByteBuffer seek,
+            long from, long size) throws IOException {
+        long p = from;
+
+        while (p < size) {
+            seek.clear();
+            int n = channel.read(seek, p);
+
+            if (n <= 0) {
+                break;
+            }
+
+            for (int i = 0; i < n; i++) {
+                if (seek.get(i) == '\n') {
+                    return p + i + 1;
+                }
+            }
+
+            p += n;
+        }
+
+        return size;
+    }
+
+    private static class Split {
+        private final File file;
+        private final long offset;
+        private final long length;
+
+        public Split(File file, long offset, long length) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private class ScanTask extends RecursiveTask<TextModel.Builder> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Split> splits;
+        private final int from;
+        private final int to;
+
+        public ScanTask(List<Split> splits, int from, int to) {
+            this.splits = splits;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected TextModel.Builder compute() {
+            if (to - from == 1) {
+                try {
+                    return scanSplit(splits.get(from));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            int mid = (from + to) >>> 1;
+            ScanTask left = new ScanTask(splits, from, mid);
+            ScanTask right = new ScanTask(splits, mid, to);
+
+            right.fork();
+            TextModel.Builder merged = left.compute();
+            merged.merge(right.join());
+
+            return merged;
+        }
+
+        private TextModel.Builder scanSplit(Split split) throws IOException {
+            TextModel.Builder b = new TextModel.Builder(contextLen);
+            RandomAccessFile raf = new RandomAccessFile(split.file, "r");
+
+            try {
+                FileChannel channel = raf.getChannel();
+                long done = 0;
+
+                while (done < split.length) {
+                    long len = Math.min(split.length - done, Integer.MAX_VALUE);
+                    MappedByteBuffer buf = channel.map(
+                            FileChannel.MapMode.READ_ONLY, split.offset + done,
+                            len);
+
+                    scan(buf, b);
+                    done += len;
+                }
+            } finally {
+                raf.close();
+            }
+
+            return b;
+        }
+    }
+}
@@ -0,0 +1,356 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sunnycode.huff.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.sunnycode.huff.io.BitOutput;
+
+/**
+ * Trains a {@link TextModel.Builder} on a uniform random sample of blocks
+ * from a set of files, within a budget of bytes scanned and of contexts
+ * held. Blocks are cut to whole lines: a block not at the start of its file
+ * drops its first partial line, and every block drops its last partial line,
+ * so lines longer than a block are never sampled.
+ *
+ * A fraction of the sampled blocks is held out of training. Another equal
+ * fraction of training blocks is kept as a probe. Comparing the model's
+ * ratio on the two estimates how much worse it will do on unseen data than
+ * on what it was trained on. The copies kept for the hold-out and the probe
+ * count against the context budget at {@value #CONTEXT_BYTES} bytes per
+ * context, about what a hashed context costs.
+ */
+public class SamplingTrainer {
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+    public static final double DEFAULT_HOLDOUT = 0.05;
+    public static final int CONTEXT_BYTES = 24;
+
+    private final int contextLen;
+    private final long byteBudget;
+    private final int maxContexts;
+    private final int blockSize;
+    private final double holdout;
+    private final Random random;
+
+    public SamplingTrainer(int contextLen, long byteBudget, int maxContexts) {
+        this(contextLen, byteBudget, maxContexts, DEFAULT_BLOCK_SIZE,
+                DEFAULT_HOLDOUT, new Random());
+    }
+
+    public SamplingTrainer(int contextLen, long byteBudget, int maxContexts,
+            int blockSize, double holdout, Random random) {
+        if (byteBudget < 1 || maxContexts < 1 || blockSize < 1) {
+            throw new IllegalArgumentException(
+                    "Error: budgets and block size must be positive!");
+        }
+
+        if (holdout < 0 || holdout >= 0.5) {
+            throw new IllegalArgumentException(
+                    "Error: holdout must be in range [0, 0.5)!");
+        }
+
+        this.contextLen = contextLen;
+        this.byteBudget = byteBudget;
+        this.maxContexts = maxContexts;
+        this.blockSize = blockSize;
+        this.holdout = holdout;
+        this.random = random;
+    }
+
+    public Result train(List<File> files) throws IOException {
+        long[] starts = new long[files.size() + 1];
+
+        for (int f = 0; f < files.size(); f++) {
+            long size = files.get(f).length();
+            starts[f + 1] = starts[f] + (size + blockSize - 1) / blockSize;
+        }
+
+        // enough blocks to fill the budget after the hold-out and the partial
+        // lines cut from each block; those not needed are never read
+        long wanted = (long) Math.ceil(byteBudget * 1.25
+                / (blockSize * (1 - holdout))) + 1;
+        long[] blocks = sample(starts[files.size()], (int) Math.min(
+                Integer.MAX_VALUE, wanted));
+
+        TextModel.Builder b = new TextModel.Builder(contextLen);
+        List<byte[]> heldOut = new ArrayList<byte[]>();
+        List<byte[]> probe = new ArrayList<byte[]>();
+        ByteBuffer buf = ByteBuffer.allocate(blockSize);
+        Result result = new Result(b);
+        long kept = 0;
+
+        for (long block : blocks) {
+            if (result.bytesScanned >= byteBudget) {
+                break;
+            }
+
+            int f = Arrays.binarySearch(starts, block);
+            f = (f >= 0) ? f : -f - 2;
+
+            while (starts[f + 1] == starts[f]) {
+                f += 1;
+            }
+
+            long offset = (block - starts[f]) * blockSize;
+            int len = readLines(files.get(f), offset, buf);
+
+            if (len == 0) {
+                continue;
+            }
+
+            byte[] data = buf.array();
+            int start = buf.position();
+            double role = random.nextDouble();
+            result.blocksSampled += 1;
+
+            if (role < holdout) {
+                heldOut.add(Arrays.copyOfRange(data, start, start + len));
+                result.bytesHeldOut += len;
+                kept += len;
+            } else {
+                if (role < 2 * holdout) {
+                    probe.add(Arrays.copyOfRange(data, start, start + len));
+                    kept += len;
+                }
+
+                b.clearContext();
+                b.scan(data, start, len);
+                result.bytesScanned += len;
+            }
+
+            if (b.contextCount() + kept / CONTEXT_BYTES >= maxContexts) {
+                result.memoryLimited = true;
+
+                break;
+            }
+        }
+
+        result.contexts = b.contextCount();
+        result.model = b.build();
+        result.probeBitsPerByte = bitsPerByte(result.model, probe);
+        result.heldOutBitsPerByte = bitsPerByte(result.model, heldOut);
+
+        return result;
+    }
+
+    /**
+     * @return {@code k} distinct block indices below {@code n}, chosen
+     *         uniformly at random (Floyd's algorithm), in random order so
+     *         that any prefix is also a uniform sample
+     */
+    private long[] sample(long n, int k) {
+        if (k >= n) {
+            k = (int) n;
+        }
+
+        Set<Long> chosen = new HashSet<Long>();
+
+        for (long j = n - k; j < n; j++) {
+            long t = (long) (random.nextDouble() * (j + 1));
+
+            if (!chosen.add(t)) {
+                chosen.add(j);
+            }
+        }
+
+        long[] blocks = new long[chosen.size()];
+        int i = 0;
+
+        for (Long block : chosen) {
+            blocks[i++] = block;
+        }
+
+        Arrays.sort(blocks);
+
+        for (int j = blocks.length - 1; j > 0; j--) {
+            int r = random.nextInt(j + 1);
+            long t = blocks[j];
+            blocks[j] = blocks[r];
+            blocks[r] = t;
+        }
+
+        return blocks;
+    }
+
+    /**
+     * Reads the block at {@code offset} into {@code buf} and positions it at
+     * the first whole line.
+     *
+     * @return the length of the whole lines in the block
+     */
+    private static int readLines(File file, long offset, ByteBuffer buf)
+            throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+        try {
+            FileChannel channel = raf.getChannel();
+            buf.clear();
+
+            while (buf.hasRemaining()
+                    && channel.read(buf, offset + buf.position()) > 0) {
+                // fill the block
+            }
+        } finally {
+            raf.close();
+        }
+
+        byte[] data = buf.array();
+        int end = buf.position();
+        int from = 0;
+
+        if (offset > 0) {
+            while (from < end && data[from] != '\n') {
+                from += 1;
+            }
+
+            from += 1;
+        }
+
+        int to = end;
+
+        if (end == buf.capacity()) {
+            while (to > from && data[to - 1] != '\n') {
+                to -= 1;
+            }
+        }
+
+        buf.position(Math.min(from, end));
+
+        return Math.max(0, to - from);
+    }
+
+    private static double bitsPerByte(TextModel d, List<byte[]> blocks) {
+        EncodeTable table = d.getEncodeTable();
+        long bits = 0;
+        long bytes = 0;
+        int largest = 0;
+
+        for (byte[] block : blocks) {
+            largest = Math.max(largest, block.length);
+        }
+
+        BitOutput out = new BitOutput((int) (((long) largest + 1)
+                * d.getMaxBitsPerByte() / 8 + 16));
+
+        for (byte[] block : blocks) {
+            out.reset();
+            table.encode(block, 0, block.length, true, out);
+            table.encodeEof(out);
+
+            bits += out.bitLength();
+            bytes += block.length;
+        }
+
+        return (bytes == 0) ? Double.NaN : (double) bits / bytes;
+    }
+
+    public static class Result {
+        private final TextModel.Builder builder;
+        private TextModel model;
+        private long bytesScanned;
+        private long bytesHeldOut;
+        private int blocksSampled;
+        private int contexts;
+        private boolean memoryLimited;
+        private double probeBitsPerByte;
+        private double heldOutBitsPerByte;
+
+        private Result(TextModel.Builder builder) {
+            this.builder = builder;
+        }
+
+        public TextModel.Builder getBuilder() {
+            return builder;
+        }
+
+        public TextModel getModel() {
+            return model;
+        }
+
+        public long getBytesScanned() {
+            return bytesScanned;
+        }
+
+        public long getBytesHeldOut() {
+            return bytesHeldOut;
+        }
+
+        public int getBlocksSampled() {
+            return blocksSampled;
+        }
+
+        /**
+         * @return the number of hashed contexts the builder holds
+         */
+        public int getContexts() {
+            return contexts;
+        }
+
+        /**
+         * @return true if sampling stopped early at the context budget
+         */
+        public boolean isMemoryLimited() {
+            return memoryLimited;
+        }
+
+        /**
+         * @return bits per byte on training blocks kept as a probe
+         */
+        public double getProbeBitsPerByte() {
+            return probeBitsPerByte;
+        }
+
+        /**
+         * @return bits per byte on held-out blocks
+         */
+        public double getHeldOutBitsPerByte() {
+            return heldOutBitsPerByte;
+        }
+
+        /**
+         * @return the relative growth in compressed size expected on data the
+         *         model has not seen, or NaN without a probe and a hold-out
+         */
+        public double getEstimatedError() {
+            return heldOutBitsPerByte / probeBitsPerByte - 1.0;
+        }
+
+        @Override
+        public String toString() {
+            return "blocks=" + blocksSampled + ",scanned=" + bytesScanned
+                    + ",heldOut=" + bytesHeldOut + ",contexts=" + contexts
+                    + ",memoryLimited="
+                    + memoryLimited + ",probeBitsPerByte="
+                    + String.format("%.3f", probeBitsPerByte)
+                    + ",heldOutBitsPerByte="
+                    + String.format("%.3f", heldOutBitsPerByte)
+                    + ",estimatedError="
+                    + String.format("%.4f", getEstimatedError());
+        }
+    }
+}
@@ -17,25 +17,57 @@
  */
 package org.sunnycode.huff.model;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 
 public class TextModel {
     public static final int EOF = 255;
-    private final List<CharFreq> freqList;
-    private final CharFreq huffTreeRoot;
+    /**
+     * Symbol followed by an 8-bit literal, for bytes without a code of their
+     * own. Its middle byte is 0, which no token can contain.
+     */
+    public static final int ESCAPE = 0x010000;
+    public static final int MAX_CODE_LENGTH = 56;
     private final Map<Integer, HuffCode> dictionary;
-    private final Map<Long, HuffCode> decode;
+    private volatile Map<Long, HuffCode> decode;
+    private final DecodeTable decodeTable;
+    private final EncodeTable encodeTable;
     private final long tot;
     private final int context;
     private int maxBits;
 
     public TextModel(Map<Integer, Long> freq, long tot, int context) {
+        this(context, tot, createDictionary(freq));
+    }
+
+    /**
+     * Creates a model with canonical codes no longer than
+     * {@code maxCodeLength} bits.
+     */
+    public TextModel(Map<Integer, Long> freq, long tot, int context,
+            int maxCodeLength) {
+        this(context, tot, createCanonicalDictionary(freq, maxCodeLength));
+    }
+
+    private TextModel(int context, long tot, Map<Integer, HuffCode> dictionary) {
+        this(context, tot, dictionary, null, null);
+    }
+
+    /**
+     * Creates a model around precomputed tables, or builds them from the
+     * dictionary where {@code null}.
+     */
+    TextModel(int context, long tot, Map<Integer, HuffCode> dictionary,
+            DecodeTable decodeTable, EncodeTable encodeTable) {
         if (context < 1 || context > 3) {
             throw new IllegalArgumentException(
                     "Error: context must be in range 1-3!");
@@ -43,10 +75,7 @@ public class TextModel {
 
         this.context = context;
         this.tot = tot;
-        this.freqList = sortFreq(freq, tot);
-        this.huffTreeRoot = createHuffmanTree(this.freqList);
-        this.dictionary = createDictionary(
-                new LinkedHashMap<Integer, HuffCode>(), this.huffTreeRoot, "");
+        this.dictionary = dictionary;
         this.maxBits = 0;
 
         for (HuffCode code : dictionary.values()) {
@@ -55,13 +84,53 @@ public class TextModel {
             }
         }
 
-        this.decode = createDecode(dictionary);
+        this.decodeTable = (decodeTable != null) ? decodeTable
+                : new DecodeTable(dictionary.values(), maxBits,
+                        DecodeTable.DEFAULT_ROOT_BITS);
+        this.encodeTable = (encodeTable != null) ? encodeTable
+                : new EncodeTable(dictionary.values());
+    }
+
+    /**
+     * Recreates a canonical model from its code lengths alone.
+     */
+    public static TextModel fromCodeLengths(Map<Integer, Integer> codeLengths,
+            int context) {
+        int[] symbols = new int[codeLengths.size()];
+        int[] lengths = new int[codeLengths.size()];
+        int i = 0;
+
+        for (Map.Entry<Integer, Integer> entry : codeLengths.entrySet()) {
+            symbols[i] = entry.getKey();
+            lengths[i] = entry.getValue();
+            i += 1;
+        }
+
+        return new TextModel(context, 0L, createCanonicalDictionary(symbols,
+                lengths, new long[symbols.length]));
     }
 
     public int getMaxBits() {
         return maxBits;
     }
 
+    /**
+     * @return the most bits one byte of input can take, counting escaped
+     *         bytes
+     */
+    public int getMaxBitsPerByte() {
+        int escape = encodeTable.escapeBits();
+
+        return (escape == 0) ? maxBits : Math.max(maxBits, escape + 8);
+    }
+
+    /**
+     * @return the size in bytes of the encode and decode tables
+     */
+    public long getTableBytes() {
+        return 256L * 8 + encodeTable.slots() * 12L + decodeTable.size() * 4L;
+    }
+
     public int getContext() {
         return context;
     }
@@ -70,8 +139,27 @@ public class TextModel {
         return tot;
     }
 
+    /**
+     * @return the codes keyed by length and code, built on first use; coding
+     *         goes through the tables instead
+     */
     public Map<Long, HuffCode> getDecode() {
-        return decode;
+        Map<Long, HuffCode> d = decode;
+
+        if (d == null) {
+            d = createDecode(dictionary);
+            decode = d;
+        }
+
+        return d;
+    }
+
+    public DecodeTable getDecodeTable() {
+        return decodeTable;
+    }
+
+    public EncodeTable getEncodeTable() {
+        return encodeTable;
     }
 
     public Map<Integer, HuffCode> getDictionary() {
@@ -91,101 +179,160 @@ public class TextModel {
         return map;
     }
 
-    private static Map<Integer, HuffCode> createDictionary(
-            Map<Integer, HuffCode> dictionary, CharFreq input, String marker) {
-        if (input.b > 0 && marker != null && marker.length() > 0) {
-            dictionary.put(input.b, new HuffCode(input.b,
-                    byteWidth(input.b) * 8, marker, Long.parseLong(marker, 2),
-                    marker.length(), input.f));
+    private static Map<Integer, HuffCode> createCanonicalDictionary(
+            Map<Integer, Long> freq, int maxCodeLength) {
+        if (maxCodeLength < 1 || maxCodeLength > MAX_CODE_LENGTH) {
+            throw new IllegalArgumentException(
+                    "Error: maxCodeLength must be in range 1-"
+                            + MAX_CODE_LENGTH + "!");
         }
 
-        if (input.l != null) {
-            createDictionary(dictionary, input.l, marker + "0");
+        List<Integer> syms = new ArrayList<Integer>();
+        for (Map.Entry<Integer, Long> entry : freq.entrySet()) {
+            if (entry.getValue() != 0) {
+                syms.add(entry.getKey());
+            }
         }
 
-        if (input.r != null) {
-            createDictionary(dictionary, input.r, marker + "1");
+        int[] symbols = new int[syms.size()];
+        long[] weights = new long[syms.size()];
+
+        for (int i = 0; i < symbols.length; i++) {
+            symbols[i] = syms.get(i);
+            weights[i] = freq.get(symbols[i]);
+        }
+
+        return createCanonicalDictionary(symbols,
+                CodeLengths.limited(weights, maxCodeLength), weights);
+    }
+
+    private static Map<Integer, HuffCode> createCanonicalDictionary(
+            int[] symbols, int[] lengths, long[] weights) {
+        long[] codes = CodeLengths.canonical(symbols, lengths);
+        Map<Integer, HuffCode> dictionary = new LinkedHashMap<Integer, HuffCode>();
+
+        for (int i = 0; i < symbols.length; i++) {
+            dictionary.put(symbols[i], new HuffCode(symbols[i],
+                    byteWidth(symbols[i]) * 8, toBinaryString(codes[i],
+                            lengths[i]), codes[i], lengths[i], weights[i]));
         }
 
         return dictionary;
     }
 
-    private static CharFreq createHuffmanTree(List<CharFreq> theInput) {
-        List<CharFreq> input = new ArrayList<CharFreq>();
-        input.addAll(theInput);
+    static String toBinaryString(long code, int numBits) {
+        StringBuilder b = new StringBuilder(numBits);
 
-        while (input.size() > 1) {
-            CharFreq z = new CharFreq();
+        for (int i = numBits - 1; i >= 0; i--) {
+            b.append(((code >>> i) & 1L) == 0 ? '0' : '1');
+        }
 
-            if (input.size() > 0) {
-                z.l = input.remove(0);
-                z.f = z.l.f;
-            }
+        return b.toString();
+    }
 
-            if (input.size() > 0) {
-                z.r = input.remove(0);
-                z.f += z.r.f;
-            }
+    /**
+     * Builds classic Huffman codes with the two-queue method: leaves sorted by
+     * ascending frequency in one queue, merged nodes in creation order in the
+     * other, preferring a leaf on ties. Codes are assigned by a preorder walk,
+     * 0 to the left.
+     */
+    private static Map<Integer, HuffCode> createDictionary(
+            Map<Integer, Long> freq) {
+        Map<Integer, HuffCode> dictionary = new LinkedHashMap<Integer, HuffCode>();
+        final int[] symbols = new int[freq.size()];
+        final long[] weights = new long[freq.size()];
+        int n = 0;
 
-            for (int j = 0; j < input.size(); j++) {
-                if (z.f < input.get(j).f) {
-                    input.add(j, z);
-                    z = null;
-                    break;
-                }
+        for (Map.Entry<Integer, Long> entry : freq.entrySet()) {
+            if (entry.getValue() != 0) {
+                symbols[n] = entry.getKey();
+                weights[n] = entry.getValue();
+                n += 1;
             }
+        }
 
-            if (z != null && z.f >= 0) {
-                input.add(z);
-            }
+        if (n == 0) {
+            return dictionary;
         }
 
-        return input.get(0);
-    }
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
 
-    private static List<CharFreq> sortFreq(Map<Integer, Long> freq, long tot) {
-        List<CharFreq> output = new ArrayList<CharFreq>();
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer o1, Integer o2) {
+                long w1 = weights[o1];
+                long w2 = weights[o2];
 
-        for (Map.Entry<Integer, Long> entry : freq.entrySet()) {
-            if (entry.getValue() == 0) {
-                continue;
+                return w1 < w2 ? -1 : (w1 > w2 ? 1 : 0);
             }
+        });
 
-            // int byteWidth = byteWidth(entry.getKey());
-            // if (byteWidth == 3
-            // && (((double) entry.getValue() / (double) tot) < 0.001)) {
-            // continue;
-            // }
-            //
-            // if (byteWidth == 2
-            // && (((double) entry.getValue() / (double) tot) < 0.01)) {
-            // continue;
-            // }
+        // nodes 0..n-1 are leaves in ascending order, n.. are merged nodes
+        long[] weight = new long[2 * n - 1];
+        int[] left = new int[n - 1];
+        int[] right = new int[n - 1];
 
-            CharFreq toAdd = new CharFreq();
+        for (int i = 0; i < n; i++) {
+            weight[i] = weights[order[i]];
+        }
+
+        int leaf = 0;
+        int merged = n;
 
-            toAdd.b = entry.getKey();
-            toAdd.f = entry.getValue();
+        for (int k = n; k < 2 * n - 1; k++) {
+            int l = (leaf < n && (merged >= k || weight[leaf] <= weight[merged])) ? leaf++
+                    : merged++;
+            int r = (leaf < n && (merged >= k || weight[leaf] <= weight[merged])) ? leaf++
+                    : merged++;
 
-            output.add(toAdd);
+            left[k - n] = l;
+            right[k - n] = r;
+            weight[k] = weight[l] + weight[r];
         }
 
-        Collections.sort(output, new Comparator<CharFreq>() {
-            public int compare(CharFreq o1, CharFreq o2) {
-                if (o1.f > o2.f) {
-                    return 1;
-                } else if (o2.f > o1.f) {
-                    return -1;
-                }
+        int[] stack = new int[2 * n];
+        long[] codes = new long[2 * n];
+        int[] lengths = new int[2 * n];
+        int top = 0;
+
+        stack[top] = 2 * n - 2;
+        codes[top] = 0;
+        lengths[top] = (n == 1) ? 1 : 0;
+        top += 1;
 
-                return 0;
+        while (top > 0) {
+            top -= 1;
+            int node = stack[top];
+            long code = codes[top];
+            int length = lengths[top];
+
+            if (node < n) {
+                int sym = symbols[order[node]];
+
+                dictionary.put(sym, new HuffCode(sym, byteWidth(sym) * 8,
+                        toBinaryString(code, length), code, length,
+                        weight[node]));
+
+                continue;
             }
-        });
 
-        return output;
+            stack[top] = right[node - n];
+            codes[top] = (code << 1) | 1;
+            lengths[top] = length + 1;
+            top += 1;
+
+            stack[top] = left[node - n];
+            codes[top] = code << 1;
+            lengths[top] = length + 1;
+            top += 1;
+        }
+
+        return dictionary;
     }
 
-    private static int byteWidth(int key) {
+    static int byteWidth(int key) {
         if ((key & 0xFF0000) != 0) {
             return 3;
         } else if ((key & 0xFF00) != 0) {
@@ -195,35 +342,58 @@ public class TextModel {
         return 1;
     }
 
-    public static class CharTrieNode {
-        public Map<Integer, CharTrieNode> children = new LinkedHashMap<Integer, CharTrieNode>();
-        public CharTrieNode parent = null;
-        public int b;
-        public long c;
-        public long t;
-
-        @Override
-        public String toString() {
-            return "[b=" + b + ",c=" + c + ",t=" + t + ",children=" + children
-                    + "]";
-        }
-    }
-
+    /**
+     * Collects byte and context frequencies. Each scanned byte counts every
+     * prefix of the current context window, oldest byte first; a context is
+     * emitted as a symbol when no longer context extends it.
+     */
     public static class Builder {
+        private static volatile ModelListener listener;
+
         private final long[] chars = new long[256];
-        private final CharTrieNode root = new CharTrieNode();
-        private final LinkedList<Integer> context = new LinkedList<Integer>();
+        private final ContextCounts counts = new ContextCounts();
         private final int contextLen;
+        private int window;
+        private int windowLen;
+        private int head;
+        private int headLen;
+        private boolean headOpen;
+        private long total;
         private int lines;
 
+        // bulk scan state, allocated on first use and folded into chars and
+        // counts before they are read
+        private long[] split;
+        private long[] ones;
+        private long[] twos;
+        private byte[] chunk;
+        private boolean dirty;
+
         public Builder(int contextLen) {
+            if (contextLen < 1 || contextLen > 3) {
+                throw new IllegalArgumentException(
+                        "Error: context must be in range 1-3!");
+            }
+
             this.contextLen = contextLen;
+            this.headOpen = true;
             this.lines = 1;
         }
 
         public void scanLine(String in) {
             for (int i = 0; i < in.length(); i += 1) {
-                scan(in.charAt(i));
+                char c = in.charAt(i);
+
+                if (c >= 0x80) {
+                    for (byte b : in.substring(i).getBytes(
+                            StandardCharsets.UTF_8)) {
+                        scan(b & 0xFF);
+                    }
+
+                    break;
+                }
+
+                scan(c);
             }
 
             lines += 1;
@@ -232,144 +402,529 @@ public class TextModel {
         }
 
         public void clearContext() {
-            context.clear();
+            window = 0;
+            windowLen = 0;
+            headOpen = false;
         }
 
-        public void scan(int in) {
-            if ((in < 32 || in > 126)
-                    && (in != '\t' && in != '\r' && in != '\n')) {
-                System.err.println("line " + lines + ", ignoring char: " + in);
+        /**
+         * Scans {@code len} bytes of {@code buf}, with the same result as
+         * scanning them one at a time. Byte counts go to four interleaved
+         * histograms so that runs of one byte do not serialize on one
+         * counter, and 2-byte contexts to a direct-indexed table; only 3-byte
+         * contexts are hashed. The 1-byte contexts are the byte counts shifted
+         * by the window length, so they are derived from the histograms with
+         * a correction for the bytes at either end.
+         */
+        public void scan(byte[] buf, int off, int len) {
+            int end = off + len;
+            int i = off;
+
+            // fill the window (and the boundary head) one byte at a time
+            while (i < end
+                    && (windowLen < contextLen || (headOpen && headLen < contextLen - 1))) {
+                scan(buf[i++] & 0xFF);
+            }
 
+            if (i == end) {
                 return;
             }
 
-            if (in == '\n') {
-                lines += 1;
+            if (split == null) {
+                split = new long[4 * 256];
+                ones = new long[256];
+                twos = (contextLen > 1) ? new long[1 << 16] : null;
             }
 
-            chars[in] += 1;
+            long[] split = this.split;
+            long[] ones = this.ones;
+            long[] twos = this.twos;
+            ContextCounts counts = this.counts;
+            long newlines = split['\n'] + split[256 + '\n']
+                    + split[512 + '\n'] + split[768 + '\n'];
+            int start = i;
+            int w = window;
+
+            if (contextLen == 1) {
+                for (; i < end; i++) {
+                    split[((i & 3) << 8) | (buf[i] & 0xFF)] += 1;
+                }
 
-            context.add(in);
+                w = buf[end - 1] & 0xFF;
+            } else if (contextLen == 2) {
+                for (; i < end; i++) {
+                    int in = buf[i] & 0xFF;
+                    split[((i & 3) << 8) | in] += 1;
+                    w = (w >>> 8) | (in << 8);
+                    twos[w] += 1;
+                }
+            } else {
+                for (; i < end; i++) {
+                    int in = buf[i] & 0xFF;
+                    split[((i & 3) << 8) | in] += 1;
+                    w = (w >>> 8) | (in << 16);
+                    twos[w & 0xFFFF] += 1;
+                    counts.add(w | (3 << 24), 1);
+                }
+            }
 
-            if (context.size() > contextLen) {
-                context.removeFirst();
+            // the first byte of each window trails the byte scanned by
+            // contextLen - 1 positions
+            for (int k = 1; k < contextLen; k++) {
+                ones[(window >>> (k << 3)) & 0xFF] += 1;
+                ones[(w >>> (k << 3)) & 0xFF] -= 1;
             }
 
-            CharTrieNode current = root;
+            lines += (int) (split['\n'] + split[256 + '\n']
+                    + split[512 + '\n'] + split[768 + '\n'] - newlines);
+            total += end - start;
+            window = w;
+            dirty = true;
+        }
+
+        /**
+         * Scans the remaining bytes of {@code buf}, advancing its position to
+         * its limit.
+         */
+        public void scan(ByteBuffer buf) {
+            if (buf.hasArray()) {
+                scan(buf.array(), buf.arrayOffset() + buf.position(), buf
+                        .remaining());
+                buf.position(buf.limit());
+
+                return;
+            }
+
+            if (chunk == null) {
+                chunk = new byte[64 * 1024];
+            }
+
+            while (buf.hasRemaining()) {
+                int n = Math.min(chunk.length, buf.remaining());
+                buf.get(chunk, 0, n);
+                scan(chunk, 0, n);
+            }
+        }
+
+        /**
+         * @return the number of hashed contexts, which is what grows the
+         *         builder's memory with the variety of its input
+         */
+        int contextCount() {
+            return counts.size();
+        }
+
+        /**
+         * Moves the bulk scan tables into {@link #chars} and {@link #counts}.
+         */
+        private void fold() {
+            if (!dirty) {
+                return;
+            }
 
-            for (Integer i : context) {
-                if (!current.children.containsKey(i)) {
-                    CharTrieNode anew = new CharTrieNode();
-                    anew.parent = current;
-                    anew.b = i;
-                    current.children.put(i, anew);
+            for (int b = 0; b < 256; b++) {
+                long c = split[b] + split[256 + b] + split[512 + b]
+                        + split[768 + b];
+
+                chars[b] += c;
+
+                if (c + ones[b] != 0) {
+                    counts.add(ContextCounts.key(b, 1), c + ones[b]);
+                }
+            }
+
+            for (int k = 0; twos != null && k < twos.length; k++) {
+                if (twos[k] != 0) {
+                    counts.add(ContextCounts.key(k, 2), twos[k]);
                 }
+            }
 
-                current = current.children.get(i);
-                current.t += 1;
+            Arrays.fill(split, 0L);
+            Arrays.fill(ones, 0L);
+
+            if (twos != null) {
+                Arrays.fill(twos, 0L);
             }
 
-            current.c += 1;
+            dirty = false;
         }
 
+        /**
+         * Counts one byte of input. Every byte value is counted; those that
+         * cannot have a code of their own (0 and {@link TextModel#EOF}) are
+         * coded with {@link TextModel#ESCAPE}.
+         */
+        public void scan(int in) {
+            if (in == '\n') {
+                lines += 1;
+            }
+
+            chars[in] += 1;
+            total += 1;
+
+            if (headOpen && headLen < contextLen - 1) {
+                head |= in << (headLen << 3);
+                headLen += 1;
+            }
+
+            if (windowLen == contextLen) {
+                window >>>= 8;
+                windowLen -= 1;
+            }
+
+            window |= in << (windowLen << 3);
+            windowLen += 1;
+
+            counts.addPrefixes(window, windowLen, 1);
+        }
+
+        /**
+         * Merges the counts of {@code other}, which must have scanned the
+         * input directly following the input scanned by this builder. Windows
+         * at the start of {@code other} that were cut short for lack of
+         * context are recounted with the context at the end of this builder.
+         */
         public void merge(Builder other) {
+            if (other.contextLen != this.contextLen) {
+                throw new IllegalArgumentException(
+                        "Error: cannot merge builders of different context!");
+            }
+
+            this.fold();
+            other.fold();
+
             for (int i = 0; i < other.chars.length; i++) {
                 this.chars[i] += other.chars[i];
             }
 
-            this.lines += other.lines;
+            this.total += other.total;
+            this.lines += other.lines - 1;
 
-            // TODO: merge context?
-            mergeTrie(this.root, other.root);
-        }
+            counts.addAll(other.counts);
 
-        private void mergeTrie(CharTrieNode here, CharTrieNode there) {
-            here.c += there.c;
-            here.t += there.t;
+            if (windowLen > 0) {
+                for (int j = 1; j <= other.headLen; j++) {
+                    long joined = window | ((long) other.head << (windowLen << 3));
+                    int n = windowLen + j;
+                    int fullLen = Math.min(n, contextLen);
 
-            for (CharTrieNode n : there.children.values()) {
-                if (!here.children.containsKey(n.b)) {
-                    CharTrieNode anew = new CharTrieNode();
-                    anew.parent = here;
-                    anew.b = n.b;
-                    here.children.put(anew.b, anew);
+                    counts.addPrefixes(other.head, j, -1);
+                    counts.addPrefixes((int) (joined >>> ((n - fullLen) << 3)),
+                            fullLen, 1);
                 }
+            }
+
+            if (this.headOpen) {
+                for (int j = 0; j < other.headLen && headLen < contextLen - 1; j++) {
+                    head |= ((other.head >>> (j << 3)) & 0xFF) << (headLen << 3);
+                    headLen += 1;
+                }
+
+                this.headOpen = other.headOpen;
+            }
+
+            if (other.headOpen) {
+                long joined = window
+                        | ((long) other.window << (windowLen << 3));
+                int n = windowLen + other.windowLen;
 
-                mergeTrie(here.children.get(n.b), n);
+                this.windowLen = Math.min(n, contextLen);
+                this.window = (int) (joined >>> ((n - windowLen) << 3));
+            } else {
+                this.window = other.window;
+                this.windowLen = other.windowLen;
             }
         }
 
-        public void compact(CharTrieNode node) {
-            if (!node.children.isEmpty()) {
-                List<Integer> codes = new ArrayList<Integer>();
-                codes.addAll(node.children.keySet());
+        /**
+         * @return the frequency of every byte and every context that no
+         *         longer context extends, keyed by packed symbol
+         */
+        public Map<Integer, Long> getFreq() {
+            fold();
 
-                for (Integer key : codes) {
-                    CharTrieNode child = node.children.get(key);
+            Map<Integer, Long> fr = new LinkedHashMap<Integer, Long>();
+            for (int i = 1; i < EOF; i++) {
+                if (chars[i] > 0) {
+                    fr.put(i, chars[i]); // chars[i] /* div 64 */);
+                }
+            }
 
-                    // remove children who are smaller than 1/64 of parent
-                    if (node.parent != null && node.parent.parent != null
-                            && ((child.c << 6) < node.t)) {
-                        // System.out.println("---------------------");
-                        // System.out.println(" from: " + node);
-                        // System.out.println("prune: " + child);
-                        node.children.remove(key);
-                        node.c += child.c;
-                    } else {
-                        compact(child);
+            ContextCounts parents = new ContextCounts();
+            int live = 0;
+
+            for (int i = 0; i < counts.capacity(); i++) {
+                int key = counts.keyAt(i);
+
+                if (key != 0 && counts.countAt(i) > 0 && isToken(key)) {
+                    live += 1;
+
+                    if (ContextCounts.length(key) > 1) {
+                        parents.add(ContextCounts.parent(key), 1);
                     }
                 }
             }
+
+            int[] leaves = new int[live];
+            int n = 0;
+
+            for (int i = 0; i < counts.capacity(); i++) {
+                int key = counts.keyAt(i);
+
+                if (key != 0 && counts.countAt(i) > 0 && isToken(key)
+                        && parents.get(key) == 0) {
+                    leaves[n++] = key;
+                }
+            }
+
+            leaves = Arrays.copyOf(leaves, n);
+            Arrays.sort(leaves);
+
+            for (int key : leaves) {
+                fr.put(ContextCounts.path(key), counts.get(key));
+            }
+
+            fr.put(ESCAPE, chars[0] + chars[EOF] + 1);
+            fr.put(EOF, (long) lines);
+
+            return fr;
         }
 
-        public Map<Integer, Long> getFreq(int depth, int sym,
-                CharTrieNode node, Map<Integer, Long> collect) {
-            sym |= (node.b << ((depth - 1) * 8));
+        /**
+         * Same as {@link #getFreq()}, with at most {@code maxSymbols}
+         * symbols. The single bytes, {@link TextModel#ESCAPE} and
+         * {@link TextModel#EOF} are always kept. Multi-byte tokens are dropped
+         * in order of least estimated saving: the bits of coding the token's
+         * bytes one at a time, less the bits of the token, times its count,
+         * with code lengths estimated from the counts. A dropped 3-byte
+         * token's count is folded into its 2-byte prefix, which becomes a
+         * token itself if it was not one.
+         */
+        public Map<Integer, Long> getFreq(int maxSymbols) {
+            Map<Integer, Long> fr = getFreq();
+
+            if (fr.size() <= maxSymbols) {
+                return fr;
+            }
+
+            double n = Math.max(total, 1L);
+            double[] bits = new double[256];
+
+            for (int b = 0; b < bits.length; b++) {
+                bits[b] = log2(n / Math.max(chars[b], 1L));
+            }
 
-            if (!node.children.isEmpty()) {
-                for (Map.Entry<Integer, CharTrieNode> entry : node.children
-                        .entrySet()) {
-                    getFreq(depth + 1, sym, entry.getValue(), collect);
+            Map<Integer, Token> live = new HashMap<Integer, Token>();
+            PriorityQueue<Token> queue = new PriorityQueue<Token>();
+            int fixed = 0;
+
+            for (Map.Entry<Integer, Long> entry : fr.entrySet()) {
+                int key = entry.getKey();
+
+                if (key <= 0xFF || key == ESCAPE) {
+                    fixed += 1;
+                } else {
+                    Token t = new Token(key, entry.getValue(), bits, n);
+                    live.put(key, t);
+                    queue.add(t);
                 }
-            } else {
-                collect.put(sym, node.t);
             }
 
-            return collect;
+            while (fixed + live.size() > maxSymbols && !queue.isEmpty()) {
+                Token t = queue.poll();
+
+                if (live.get(t.key) != t) {
+                    continue;
+                }
+
+                live.remove(t.key);
+
+                if (t.key > 0xFFFF) {
+                    int prefix = t.key & 0xFFFF;
+                    Token p = live.get(prefix);
+                    Token folded = new Token(prefix, t.count
+                            + ((p != null) ? p.count : 0L), bits, n);
+
+                    live.put(prefix, folded);
+                    queue.add(folded);
+                }
+            }
+
+            Map<Integer, Long> pruned = new LinkedHashMap<Integer, Long>();
+
+            for (Map.Entry<Integer, Long> entry : fr.entrySet()) {
+                if (entry.getKey() <= 0xFF && entry.getKey() != EOF) {
+                    pruned.put(entry.getKey(), entry.getValue());
+                }
+            }
+
+            int[] kept = new int[live.size()];
+            int i = 0;
+
+            for (Integer key : live.keySet()) {
+                kept[i++] = key;
+            }
+
+            Arrays.sort(kept);
+
+            for (int key : kept) {
+                pruned.put(key, live.get(key).count);
+            }
+
+            pruned.put(ESCAPE, fr.get(ESCAPE));
+            pruned.put(EOF, fr.get(EOF));
+
+            return pruned;
+        }
+
+        private static double log2(double x) {
+            return Math.log(x) / Math.log(2);
+        }
+
+        /**
+         * A multi-byte token under consideration for pruning, ordered by
+         * estimated saving.
+         */
+        private static class Token implements Comparable<Token> {
+            private final int key;
+            private final long count;
+            private final double saving;
+
+            public Token(int key, long count, double[] bits, double n) {
+                double separate = 0;
+
+                for (int path = key; path != 0; path >>>= 8) {
+                    separate += bits[path & 0xFF];
+                }
+
+                this.key = key;
+                this.count = count;
+                this.saving = count * (separate - log2(n / count));
+            }
+
+            public int compareTo(Token o) {
+                return Double.compare(saving, o.saving);
+            }
+        }
+
+        /**
+         * @return false for contexts the encoder never matches as one token:
+         *         those holding a 0 byte, and the bytes reserved for EOF
+         */
+        private static boolean isToken(int key) {
+            int path = ContextCounts.path(key);
+
+            if (ContextCounts.length(key) == 1) {
+                return path != 0 && path != EOF;
+            }
+
+            return (path & 0xFF) != 0 && (path & 0xFF00) != 0
+                    && (ContextCounts.length(key) == 2 || (path & 0xFF0000) != 0);
+        }
+
+        /**
+         * Builds a model whose encodings compare in the same order as their
+         * inputs; see {@link OrderPreservingModel}.
+         */
+        public OrderPreservingModel buildOrderPreserving() {
+            fold();
+
+            return OrderPreservingModel.build(counts, lines);
         }
 
         public TextModel build() {
-            CharTrieNode eof = new CharTrieNode();
-            eof.b = EOF;
-            eof.c = lines;
-            eof.t = lines;
-            eof.parent = root;
+            return build(0);
+        }
 
-            root.children.put(EOF, eof);
+        /**
+         * Builds a model with canonical codes limited to
+         * {@code maxCodeLength} bits, or classic tree-walk codes if
+         * {@code maxCodeLength} is 0.
+         */
+        public TextModel build(int maxCodeLength) {
+            return build(maxCodeLength, Integer.MAX_VALUE);
+        }
 
-            // compact(root);
+        /**
+         * Builds a model as {@link #build(int)} with at most
+         * {@code maxSymbols} symbols; see {@link #getFreq(int)}.
+         */
+        public TextModel build(int maxCodeLength, int maxSymbols) {
+            ModelListener l = listener;
+            long start = (l != null) ? System.nanoTime() : 0L;
+            TextModel d = probe(maxCodeLength, maxSymbols);
+
+            if (l != null) {
+                l.built(d, total, System.nanoTime() - start);
+            }
 
-            Map<Integer, Long> fr = new LinkedHashMap<Integer, Long>();
-            for (int i = 0; i < chars.length; i++) {
-                if (chars[i] > 0) {
-                    fr.put(i, chars[i]); // chars[i] /* div 64 */);
+            return d;
+        }
+
+        /**
+         * Builds a model whose tables take at most {@code maxTableBytes}, as
+         * measured by {@link TextModel#getTableBytes()}, by binary search on
+         * the symbol budget. If even the single bytes alone do not fit,
+         * returns the model of single bytes. The listener is told of the
+         * returned model only.
+         *
+         * Table bytes grow with the symbol budget only roughly: the hash is
+         * sized in powers of two and code lengths shift as symbols are
+         * dropped. The search returns a model that fits, with about the most
+         * symbols that do, but a slightly larger budget may fit too.
+         */
+        public TextModel buildWithinTableBytes(int maxCodeLength,
+                long maxTableBytes) {
+            ModelListener l = listener;
+            long start = (l != null) ? System.nanoTime() : 0L;
+            TextModel best = probe(maxCodeLength, Integer.MAX_VALUE);
+
+            if (best.getTableBytes() > maxTableBytes) {
+                int lo = 0;
+                int hi = best.getDictionary().size() - 1;
+                best = null;
+
+                while (lo <= hi) {
+                    int mid = (lo + hi) >>> 1;
+                    TextModel d = probe(maxCodeLength, mid);
+
+                    if (d.getTableBytes() <= maxTableBytes) {
+                        best = d;
+                        lo = mid + 1;
+                    } else {
+                        hi = mid - 1;
+                    }
                 }
+
+                if (best == null) {
+                    best = probe(maxCodeLength, 0);
+                }
+            }
+
+            if (l != null) {
+                l.built(best, total, System.nanoTime() - start);
             }
 
-            Map<Integer, Long> f = getFreq(0, 0, root, fr);
+            return best;
+        }
+
+        /**
+         * Builds a model as {@link #build(int, int)} without telling the
+         * listener.
+         */
+        private TextModel probe(int maxCodeLength, int maxSymbols) {
+            Map<Integer, Long> f = getFreq(maxSymbols);
 
-            return new TextModel(f, root.t, contextLen);
+            return (maxCodeLength == 0) ? new TextModel(f, total, contextLen)
+                    : new TextModel(f, total, contextLen, maxCodeLength);
         }
-    }
 
-    /**
-     * Huffman Tree node
-     */
-    public static class CharFreq {
-        public int b;
-        public long f;
-        public CharFreq l;
-        public CharFreq r;
-        public String code;
+        /**
+         * Installs a listener notified of every model built, or removes it
+         * if {@code null}.
+         */
+        public static void setListener(ModelListener l) {
+            listener = l;
+        }
     }
 }
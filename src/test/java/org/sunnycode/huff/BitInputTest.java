@@ -34,6 +34,24 @@ public class BitInputTest {
         t3.match(false, 0L, 64);
     }
 
+    public void testSeek() {
+        byte[] input = new byte[24];
+        for (int i = 0; i < input.length; i++) {
+            input[i] = (byte) (i * 37 + 11);
+        }
+
+        BitInput sequential = new BitInput(input);
+        BitInput seeking = new BitInput(input);
+
+        for (int bit = 0; bit < input.length * 8 - 20; bit++) {
+            seeking.seek(bit);
+            Assert.assertEquals(seeking.position(), (long) bit);
+            Assert.assertEquals(seeking.peek(20), sequential.peek(20),
+                    "bit " + bit);
+            sequential.advance(1);
+        }
+    }
+
     public static class Tester {
         private final BitInput in;
 
@@ -20,6 +20,22 @@ public class BitOutputTest {
                 "05397725bb7f4d3df76dbfff977977b5fb7fdf7df7ffffff");
     }
 
+    public void testReset() throws Exception {
+        BitOutput out = new BitOutput(8);
+        out.writeBits(0xFFFFL, 16);
+        out.finish();
+
+        out.reset(24);
+        Assert.assertEquals(out.capacity(), 24);
+        for (int i = 0; i < 8; i++) {
+            out.writeBits(i, 24);
+        }
+
+        Assert.assertEquals(Hex.decodeHex(
+                "000000000001000002000003000004000005000006000007"
+                        .toCharArray()), out.finish());
+    }
+
     public static class Tester {
         private final BitOutput out;
 
@@ -0,0 +1,1313 @@
+package org.sunnycode.huff;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Scanner;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.sunnycode.huff.io.BitOutput;
+import org.sunnycode.huff.model.DecodeTable;
+import org.sunnycode.huff.model.DirectoryModelLoader;
+import org.sunnycode.huff.model.EncodeTable;
+import org.sunnycode.huff.model.HuffCode;
+import org.sunnycode.huff.model.ModelLoader;
+import org.sunnycode.huff.model.OrderPreservingModel;
+import org.sunnycode.huff.model.ModelFile;
+import org.sunnycode.huff.model.ParallelTrainer;
+import org.sunnycode.huff.model.SamplingTrainer;
+import org.sunnycode.huff.model.TextModel;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class HuffmanCodecTest {
+    public void testRoundTrip() {
+        List<String> lines = readLines("/filelisting.txt");
+
+        for (int context = 1; context <= 3; context++) {
+            TextModel d = buildModel(lines, context);
+
+            for (String line : lines) {
+                byte[] enc = HuffmanCodec.encode(line.getBytes(), d);
+                Assert.assertEquals(new String(HuffmanCodec.decode(enc, d)),
+                        line, "context " + context);
+            }
+        }
+    }
+
+    public void testDecodeTable() {
+        TextModel d = buildModel(readLines("/filelisting.txt"), 3);
+        DecodeTable table = d.getDecodeTable();
+        int maxBits = table.getMaxBits();
+
+        for (HuffCode code : d.getDictionary().values()) {
+            long window = code.getTarget() << (maxBits - code.getTargetNumBits());
+            int entry = table.lookup(window);
+
+            Assert.assertEquals(DecodeTable.symbol(entry), code.getSource());
+            Assert.assertEquals(DecodeTable.codeLength(entry),
+                    code.getTargetNumBits());
+        }
+    }
+
+    public void testEncodeTableMatchesDictionary() {
+        List<String> lines = readLines("/filelisting.txt");
+        TextModel d = buildModel(lines, 3);
+
+        for (String line : lines) {
+            Assert.assertEquals(HuffmanCodec.encode(line.getBytes(), d),
+                    encodeWithDictionary(line.getBytes(), d));
+        }
+    }
+
+    private static byte[] encodeWithDictionary(byte[] toencode, TextModel d) {
+        Map<Integer, HuffCode> dict = d.getDictionary();
+        BitOutput out = new BitOutput(toencode.length * 16);
+        int i = 0;
+
+        while (i < toencode.length) {
+            int width = Math.min(3, toencode.length - i);
+
+            for (; width > 0; width--) {
+                int sym = 0;
+
+                for (int j = width - 1; j >= 0; j--) {
+                    sym = (sym << 8) | toencode[i + j];
+                }
+
+                if (dict.containsKey(sym)) {
+                    out.writeBits(dict.get(sym).getTarget(), dict.get(sym)
+                            .getTargetNumBits());
+                    break;
+                }
+            }
+
+            Assert.assertTrue(width > 0);
+            i += width;
+        }
+
+        HuffCode eof = dict.get(TextModel.EOF);
+        out.writeBits(eof.getTarget(), eof.getTargetNumBits());
+
+        return out.finish();
+    }
+
+    public void testLengthLimited() {
+        List<String> lines = readLines("/filelisting.txt");
+        TextModel.Builder b = new TextModel.Builder(3);
+
+        for (String line : lines) {
+            b.scanLine(line);
+        }
+
+        TextModel d = b.build(11);
+        Assert.assertTrue(d.getMaxBits() <= 11);
+
+        for (String line : lines) {
+            byte[] enc = HuffmanCodec.encode(line.getBytes(), d);
+            Assert.assertEquals(new String(HuffmanCodec.decode(enc, d)), line);
+        }
+
+        Map<Integer, Integer> lengths = new LinkedHashMap<Integer, Integer>();
+        for (HuffCode code : d.getDictionary().values()) {
+            lengths.put(code.getSource(), code.getTargetNumBits());
+        }
+
+        TextModel copy = TextModel.fromCodeLengths(lengths, 3);
+        for (HuffCode code : d.getDictionary().values()) {
+            Assert.assertEquals(copy.getDictionary().get(code.getSource())
+                    .getTarget(), code.getTarget());
+        }
+    }
+
+    public void testUnlimitedLengthsAreOptimal() {
+        List<String> lines = readLines("/filelisting.txt");
+        TextModel.Builder b = new TextModel.Builder(2);
+
+        for (String line : lines) {
+            b.scanLine(line);
+        }
+
+        Assert.assertEquals(cost(b.build(TextModel.MAX_CODE_LENGTH)),
+                cost(b.build()));
+    }
+
+    private static long cost(TextModel d) {
+        long cost = 0;
+
+        for (HuffCode code : d.getDictionary().values()) {
+            cost += code.getFrequency() * code.getTargetNumBits();
+        }
+
+        return cost;
+    }
+
+    public void testOptimalParse() {
+        List<String> lines = readLines("/filelisting.txt");
+        TextModel d = buildModel(lines, 3);
+        long greedy = 0;
+        long optimal = 0;
+
+        for (String line : lines) {
+            byte[] a = HuffmanCodec.encode(line.getBytes(), d);
+            byte[] b = HuffmanCodec.encodeOptimal(line.getBytes(), d);
+
+            Assert.assertTrue(b.length <= a.length, line);
+            Assert.assertEquals(new String(HuffmanCodec.decode(b, d)), line);
+
+            greedy += a.length;
+            optimal += b.length;
+        }
+
+        Assert.assertTrue(optimal <= greedy);
+    }
+
+    public void testEscape() throws Exception {
+        List<String> lines = readLines("/filelisting.txt");
+        TextModel d = buildModel(lines, 3);
+        Random random = new Random(7);
+        byte[] all = new byte[256];
+        byte[] binary = new byte[2000];
+
+        for (int i = 0; i < all.length; i++) {
+            all[i] = (byte) i;
+        }
+
+        random.nextBytes(binary);
+
+        Assert.assertTrue(d.getDictionary().containsKey(TextModel.ESCAPE));
+
+        for (byte[] orig : new byte[][] { all, binary,
+                "na\u00efve caf\u00e9 \u2713".getBytes("UTF-8") }) {
+            Assert.assertEquals(HuffmanCodec.decode(
+                    HuffmanCodec.encode(orig, d), d), orig);
+            Assert.assertEquals(HuffmanCodec.decode(
+                    HuffmanCodec.encodeOptimal(orig, d), d), orig);
+            Assert.assertEquals(HuffmanCodec.decodeInterleaved(
+                    HuffmanCodec.encodeInterleaved(orig, d), d), orig);
+
+            HuffmanInputStream in = new HuffmanInputStream(
+                    new ByteArrayInputStream(HuffmanCodec.encode(orig, d)), d);
+            ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+            int b;
+
+            while ((b = in.read()) >= 0) {
+                decoded.write(b);
+            }
+
+            in.close();
+            Assert.assertEquals(decoded.toByteArray(), orig);
+        }
+
+        TextModel loaded = ModelFile.read(ModelFile.toBuffer(d));
+        Assert.assertEquals(HuffmanCodec.decode(
+                HuffmanCodec.encode(binary, loaded), d), binary);
+
+        TextModel.Builder b = new TextModel.Builder(1);
+        b.scanLine("caf\u00e9");
+        TextModel utf8 = b.build();
+
+        Assert.assertTrue(utf8.getDictionary().containsKey(0xC3));
+        Assert.assertTrue(utf8.getDictionary().containsKey(0xA9));
+    }
+
+    public void testMetrics() {
+        List<String> lines = readLines("/filelisting.txt");
+        CodecMetrics metrics = new CodecMetrics(1);
+        TextModel.Builder b = new TextModel.Builder(3);
+
+        for (String line : lines) {
+            b.scanLine(line);
+        }
+
+        TextModel.Builder.setListener(metrics);
+        HuffmanCodec.setListener(metrics);
+
+        try {
+            TextModel d = b.build();
+            long in = 0;
+            long out = 0;
+
+            for (String line : lines) {
+                byte[] enc = HuffmanCodec.encode(line.getBytes(), d);
+                Assert.assertEquals(new String(HuffmanCodec.decode(enc, d)),
+                        line);
+
+                in += line.length();
+                out += enc.length;
+            }
+
+            HuffmanCodec.encode(new byte[] { 0, 1, 2 }, d);
+
+            try {
+                HuffmanCodec.decode(new byte[0], d);
+                Assert.fail("expected truncated input");
+            } catch (HuffmanEncodingException e) {
+                Assert.assertEquals(metrics.getDecodeFailures(), 1);
+            }
+
+            Assert.assertEquals(metrics.getModelsBuilt(), 1);
+            Assert.assertEquals(metrics.getLastModelSymbols(), d
+                    .getDictionary().size());
+            Assert.assertEquals(metrics.getEncodes(), lines.size() + 1);
+            Assert.assertEquals(metrics.getEncodeBytesIn(), in + 3);
+            Assert.assertEquals(metrics.getDecodeBytesOut(), in);
+            Assert.assertTrue(metrics.getEncodeBytesOut() > out);
+            Assert.assertEquals(metrics.getTokens(0), 3);
+            Assert.assertEquals(metrics.getTokens(1) + 2 * metrics.getTokens(2)
+                    + 3 * metrics.getTokens(3), in);
+            Assert.assertEquals(metrics.getEncodeLatency().count(),
+                    lines.size() + 1);
+            Assert.assertTrue(metrics.getBitsPerByte() > 0.0);
+
+            // every entry point is measured
+            byte[] orig = lines.get(0).getBytes();
+            byte[] enc = HuffmanCodec.encode(orig, d);
+            byte[] dst = new byte[HuffmanEncoder.maxEncodedLength(d,
+                    orig.length)];
+            ByteBuffer packed = ByteBuffer.allocate(dst.length);
+            long encodes = metrics.getEncodes();
+            long decodes = metrics.getDecodes();
+
+            HuffmanCodec.encode(orig, 0, orig.length, dst, 0, d);
+            HuffmanCodec.encode(ByteBuffer.wrap(orig), packed, d);
+            packed.flip();
+            HuffmanCodec.decode(enc, 0, enc.length, dst, 0, d);
+
+            // only the consumed record counts, not the bytes after it
+            int packedLen = packed.remaining();
+            long decodeBytesIn = metrics.getDecodeBytesIn();
+
+            packed.limit(packed.capacity());
+            HuffmanCodec.decode(packed, ByteBuffer.allocate(orig.length), d);
+            Assert.assertEquals(packed.position(), packedLen);
+            Assert.assertEquals(metrics.getDecodeBytesIn() - decodeBytesIn,
+                    packedLen);
+            HuffmanCodec.encodeOptimal(orig, d);
+            HuffmanCodec.decodeBatch(HuffmanCodec.encodeBatch(
+                    new byte[][] { orig }, d), d);
+            HuffmanCodec.encodeBatch(RecordBatch.of(new byte[][] { orig }), d);
+            HuffmanCodec.decodeInterleaved(HuffmanCodec.encodeInterleaved(
+                    orig, d), d);
+            HuffmanCodec.decodeParallel(HuffmanCodec.encodeParallel(orig, d),
+                    d);
+
+            Assert.assertEquals(metrics.getEncodes() - encodes, 7);
+            Assert.assertEquals(metrics.getDecodes() - decodes, 5);
+        } finally {
+            TextModel.Builder.setListener(null);
+            HuffmanCodec.setListener(null);
+        }
+    }
+
+    public void testStreaming() throws Exception {
+        List<String> lines = readLines("/filelisting.txt");
+        TextModel.Builder b = new TextModel.Builder(3);
+        StringBuilder text = new StringBuilder();
+
+        for (String line : lines) {
+            b.scanLine(line + "\n");
+            text.append(line).append('\n');
+        }
+
+        TextModel d = b.build();
+        byte[] orig = text.toString().getBytes();
+        byte[] expected = HuffmanCodec.encode(orig, d);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        HuffmanOutputStream out = new HuffmanOutputStream(
+                Channels.newChannel(baos), d, 64);
+
+        for (int i = 0; i < orig.length; i += 37) {
+            out.write(orig, i, Math.min(37, orig.length - i));
+        }
+
+        out.close();
+        Assert.assertEquals(baos.toByteArray(), expected);
+
+        HuffmanInputStream in = new HuffmanInputStream(
+                Channels.newChannel(new ByteArrayInputStream(expected)), d, 32);
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        byte[] buf = new byte[41];
+        int read;
+
+        while ((read = in.read(buf)) >= 0) {
+            decoded.write(buf, 0, read);
+        }
+
+        in.close();
+        Assert.assertEquals(decoded.toByteArray(), orig);
+
+        // a non-blocking source that often has nothing to read
+        final ByteBuffer trickle = ByteBuffer.wrap(expected);
+        in = new HuffmanInputStream(new ReadableByteChannel() {
+            private int calls;
+
+            public int read(ByteBuffer dst) {
+                if (!trickle.hasRemaining()) {
+                    return -1;
+                }
+
+                if (calls++ % 3 != 0 || !dst.hasRemaining()) {
+                    return 0;
+                }
+
+                dst.put(trickle.get());
+
+                return 1;
+            }
+
+            public boolean isOpen() {
+                return true;
+            }
+
+            public void close() {
+            }
+        }, d, 32);
+        decoded.reset();
+        ByteBuffer chunk = ByteBuffer.allocate(41);
+
+        while (in.read(chunk) >= 0) {
+            chunk.flip();
+            decoded.write(chunk.array(), 0, chunk.limit());
+            chunk.clear();
+        }
+
+        Assert.assertEquals(decoded.toByteArray(), orig);
+
+        for (int bufferSize : new int[] { 0, 8, -1, Integer.MAX_VALUE }) {
+            try {
+                new HuffmanInputStream(Channels.newChannel(
+                        new ByteArrayInputStream(expected)), d, bufferSize);
+                Assert.fail("accepted bufferSize " + bufferSize);
+            } catch (IllegalArgumentException expectedError) {
+            }
+        }
+    }
+
+    public void testSessionReuse() {
+        List<String> lines = readLines("/filelisting.txt");
+        TextModel d = buildModel(lines, 3);
+        HuffmanEncoder encoder = new HuffmanEncoder(d);
+        HuffmanDecoder decoder = new HuffmanDecoder(d);
+        StringBuilder longLine = new StringBuilder();
+
+        for (String line : lines) {
+            longLine.append(line);
+        }
+
+        List<String> records = new ArrayList<String>(lines.subList(0, 10));
+        records.add(longLine.toString());
+        records.addAll(lines.subList(10, 20));
+
+        for (String record : records) {
+            byte[] enc = encoder.encode(record.getBytes());
+            Assert.assertEquals(enc, HuffmanCodec.encode(record.getBytes(), d));
+            Assert.assertEquals(new String(decoder.decode(enc)), record);
+        }
+
+        encoder.release();
+        decoder.release();
+        Assert.assertNull(encoder.getModel());
+        Assert.assertNull(decoder.getModel());
+
+        byte[] enc = encoder.bind(d).encode(records.get(0).getBytes());
+        Assert.assertEquals(new String(decoder.bind(d).decode(enc)), records
+                .get(0));
+
+        // the per-thread sessions do not keep a model alive after a call
+        TextModel other = buildModel(lines.subList(0, 100), 2);
+        HuffmanCodec.decode(HuffmanCodec.encode(longLine.toString()
+                .getBytes(), other), other);
+        WeakReference<TextModel> ref = new WeakReference<TextModel>(other);
+        other = null;
+
+        for (int i = 0; i < 10 && ref.get() != null; i++) {
+            System.gc();
+        }
+
+        Assert.assertNull(ref.get());
+    }
+
+    public void testBufferApis() {
+        List<String> lines = readLines("/filelisting.txt");
+        TextModel d = buildModel(lines, 3);
+        byte[] arr = new byte[64 * 1024];
+        ByteBuffer direct = ByteBuffer.allocateDirect(64 * 1024).order(
+                ByteOrder.LITTLE_ENDIAN);
+        byte[] scratch = new byte[4096];
+        int off = 3;
+
+        for (String line : lines) {
+            byte[] orig = line.getBytes();
+            byte[] expected = HuffmanCodec.encode(orig, d);
+
+            System.arraycopy(orig, 0, scratch, 5, orig.length);
+            int n = HuffmanCodec.encode(scratch, 5, orig.length, arr, off, d);
+            Assert.assertEquals(Arrays.copyOfRange(arr, off, off + n), expected);
+
+            int m = HuffmanCodec.decode(arr, off, n, scratch, 7, d);
+            Assert.assertEquals(new String(scratch, 7, m), line);
+
+            off += n;
+            direct.put(orig);
+        }
+
+        ByteBuffer packed = ByteBuffer.allocateDirect(64 * 1024);
+        direct.flip();
+
+        for (String line : lines) {
+            ByteBuffer src = direct.slice();
+            src.limit(line.length());
+            HuffmanCodec.encode(src, packed, d);
+            direct.position(direct.position() + line.length());
+        }
+
+        packed.flip();
+        ByteBuffer out = ByteBuffer.allocate(4096);
+
+        for (String line : lines) {
+            out.clear();
+            HuffmanCodec.decode(packed, out, d);
+            Assert.assertEquals(new String(out.array(), 0, out.position()),
+                    line);
+        }
+
+        Assert.assertFalse(packed.hasRemaining());
+    }
+
+    public void testBatch() {
+        List<String> lines = readLines("/filelisting.txt");
+        TextModel d = buildModel(lines, 3);
+        byte[][] records = new byte[lines.size() + 1][];
+
+        for (int i = 0; i < lines.size(); i++) {
+            records[i] = lines.get(i).getBytes();
+        }
+
+        records[lines.size()] = new byte[0];
+
+        RecordBatch encoded = HuffmanCodec.encodeBatch(records, d);
+        Assert.assertEquals(encoded.size(), records.length);
+        Assert.assertEquals(HuffmanCodec.encodeBatch(RecordBatch.of(records),
+                d).getData(), encoded.getData());
+
+        for (int i = 0; i < records.length; i++) {
+            Assert.assertEquals(encoded.get(i), HuffmanCodec.encode(
+                    records[i], d));
+        }
+
+        RecordBatch decoded = HuffmanCodec.decodeBatch(encoded, d);
+        Assert.assertEquals(decoded.size(), records.length);
+
+        for (int i = 0; i < records.length; i++) {
+            Assert.assertEquals(decoded.get(i), records[i]);
+        }
+    }
+
+    public void testBlock() {
+        List<String> lines = readLines("/filelisting.txt");
+        TextModel d = buildModel(lines, 3);
+        BlockWriter writer = new BlockWriter(d);
+
+        for (String line : lines) {
+            writer.add(line.getBytes());
+        }
+
+        writer.add(new byte[0]);
+
+        BlockReader reader = new BlockReader(writer.finish(), d);
+        Assert.assertEquals(reader.size(), lines.size() + 1);
+        Assert.assertEquals(writer.size(), 0);
+
+        for (int k = lines.size() - 1; k >= 0; k -= 7) {
+            Assert.assertEquals(new String(reader.get(k)), lines.get(k));
+        }
+
+        Assert.assertEquals(reader.get(lines.size()).length, 0);
+
+        // short index, overlong count, and lengths that overrun the data or
+        // would overflow their sum
+        byte[][] corrupt = { new byte[0], new byte[] { 3, 1 },
+                new byte[] { (byte) 0x80 }, new byte[] { 1, 9, 0 },
+                new byte[] { 2, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+                        (byte) 0xFF, 0x07, (byte) 0xFF, (byte) 0xFF,
+                        (byte) 0xFF, (byte) 0xFF, 0x07, 0 } };
+
+        for (byte[] block : corrupt) {
+            try {
+                new BlockReader(block, d);
+                Assert.fail("expected corrupt index");
+            } catch (HuffmanEncodingException e) {
+                Assert.assertTrue(e.getMessage().contains("index"));
+            }
+        }
+    }
+
+    public void testOrderPreserving() {
+        List<String> lines = readLines("/filelisting.txt");
+        TextModel.Builder b = new TextModel.Builder(3);
+
+        for (String line : lines) {
+            b.scanLine(line);
+        }
+
+        OrderPreservingModel d = b.buildOrderPreserving();
+        List<byte[]> keys = new ArrayList<byte[]>();
+
+        for (String line : lines) {
+            keys.add(line.getBytes());
+        }
+
+        Random random = new Random(7);
+        for (int i = 0; i < 500; i++) {
+            byte[] key = new byte[random.nextInt(6)];
+
+            for (int j = 0; j < key.length; j++) {
+                key[j] = (byte) (random.nextBoolean() ? random.nextInt(256)
+                        : "/usr/lib".charAt(random.nextInt(8)));
+            }
+
+            keys.add(key);
+        }
+
+        keys.add(new byte[0]);
+        keys.add(new byte[] { 0 });
+        keys.add(new byte[] { (byte) 0xFF, (byte) 0xFF });
+
+        // larger than the per-thread buffers keep, between short keys
+        byte[] huge = new byte[3 * 1024 * 1024];
+        random.nextBytes(huge);
+        keys.add(keys.size() / 2, huge);
+
+        List<byte[]> encoded = new ArrayList<byte[]>();
+
+        for (byte[] key : keys) {
+            byte[] enc = d.encode(key);
+            Assert.assertEquals(d.decode(enc), key);
+            encoded.add(enc);
+        }
+
+        for (int i = 0; i < 20000; i++) {
+            int x = random.nextInt(keys.size());
+            int y = (i % 2 == 0) ? random.nextInt(keys.size()) : Math.min(
+                    x + 1, keys.size() - 1);
+
+            Assert.assertEquals(Integer.signum(OrderPreservingModel.compare(
+                    encoded.get(x), encoded.get(y))), Integer
+                    .signum(OrderPreservingModel.compare(keys.get(x), keys
+                            .get(y))));
+        }
+    }
+
+    public void testAdaptive() {
+        List<String> lines = readLines("/filelisting.txt");
+        TextModel d = buildModel(lines, 3);
+        AdaptiveCodec sender = new AdaptiveCodec(d, 1000);
+        AdaptiveCodec receiver = new AdaptiveCodec(d, 1000);
+        long adaptive = 0;
+        long fixed = 0;
+
+        for (int round = 0; round < 3; round++) {
+            for (String line : lines.subList(lines.size() / 2, lines.size())) {
+                byte[] enc = sender.encode(line.getBytes());
+                Assert.assertEquals(new String(receiver.decode(enc)), line);
+
+                adaptive += enc.length;
+                fixed += HuffmanCodec.encode(line.getBytes(), d).length;
+            }
+        }
+
+        // the shared greedy parse covers every byte once
+        final long[] covered = new long[1];
+        long total = 0;
+
+        for (String line : lines) {
+            byte[] bytes = line.getBytes();
+            d.getEncodeTable().parse(bytes, 0, bytes.length,
+                    new EncodeTable.Tokens() {
+                        public void token(int sym, int width) {
+                            covered[0] += width;
+                        }
+                    });
+            total += bytes.length;
+        }
+
+        Assert.assertEquals(covered[0], total);
+        Assert.assertTrue(sender.getModel().generation() > 0);
+        Assert.assertEquals(receiver.getModel().generation(), sender
+                .getModel().generation());
+        Assert.assertTrue(adaptive < fixed, adaptive + " vs " + fixed);
+    }
+
+    public void testInterleaved() {
+        List<String> lines = readLines("/filelisting.txt");
+        TextModel.Builder b = new TextModel.Builder(3);
+        StringBuilder text = new StringBuilder();
+
+        for (String line : lines) {
+            b.scanLine(line + "\n");
+            text.append(line).append('\n');
+        }
+
+        TextModel d = b.build();
+        byte[] orig = text.toString().getBytes();
+
+        for (int len = 0; len < 12; len++) {
+            byte[] part = Arrays.copyOf(orig, len);
+            Assert.assertEquals(HuffmanCodec.decodeInterleaved(
+                    HuffmanCodec.encodeInterleaved(part, d), d), part);
+        }
+
+        Assert.assertEquals(HuffmanCodec.decodeInterleaved(
+                HuffmanCodec.encodeInterleaved(orig, d), d), orig);
+
+        byte[][] corrupt = {
+                // truncated inside the length
+                { (byte) 0x80 },
+                // 2^31 - 1 bytes from an empty payload
+                { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07, 0,
+                        0, 0 },
+                // length over 31 bits
+                { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F, 0,
+                        0, 0 },
+                // lane lengths past the end
+                { 1, 9, 0, 0, 0 } };
+
+        for (byte[] bad : corrupt) {
+            try {
+                HuffmanCodec.decodeInterleaved(bad, d);
+                Assert.fail("expected corrupt header");
+            } catch (HuffmanEncodingException e) {
+                Assert.assertTrue(e.getMessage().contains("header"));
+            }
+        }
+    }
+
+    public void testParallel() {
+        List<String> lines = readLines("/filelisting.txt");
+        TextModel.Builder b = new TextModel.Builder(3);
+        StringBuilder text = new StringBuilder();
+
+        for (String line : lines) {
+            b.scanLine(line + "\n");
+            text.append(line).append('\n');
+        }
+
+        TextModel d = b.build();
+        byte[] orig = text.toString().getBytes();
+        ForkJoinPool pool = new ForkJoinPool(4);
+
+        for (int blockSize : new int[] { 1, 1000, orig.length, 1 << 20 }) {
+            byte[] enc = ParallelCodec.encode(ByteBuffer.wrap(orig), d,
+                    blockSize, pool);
+            Assert.assertEquals(ParallelCodec.decode(enc, d, pool), orig);
+        }
+
+        Assert.assertEquals(HuffmanCodec.decodeParallel(
+                HuffmanCodec.encodeParallel(new byte[0], d), d), new byte[0]);
+
+        byte[][] corrupt = {
+                // block count over 2^31
+                { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F },
+                // more blocks than the index has room for
+                { (byte) 0xFF, (byte) 0xFF, 0x7F, 1, 1 },
+                // 2^31 - 1 raw bytes from one encoded byte
+                { 1, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07,
+                        1, 0 },
+                // truncated index
+                { 2, 1, 1 } };
+
+        for (byte[] bad : corrupt) {
+            try {
+                ParallelCodec.decode(bad, d, pool);
+                Assert.fail("expected corrupt index");
+            } catch (HuffmanEncodingException e) {
+                Assert.assertTrue(e.getMessage().contains("index"));
+            }
+        }
+
+        pool.shutdown();
+    }
+
+    public void testSymbolBudget() {
+        List<String> lines = readLines("/filelisting.txt");
+        TextModel.Builder b = new TextModel.Builder(3);
+
+        for (String line : lines) {
+            b.scanLine(line);
+        }
+
+        TextModel full = b.build(TextModel.MAX_CODE_LENGTH);
+        int budget = full.getDictionary().size() / 4;
+        TextModel small = b.build(TextModel.MAX_CODE_LENGTH, budget);
+        CodecMetrics metrics = new CodecMetrics(1);
+        TextModel fitted;
+
+        TextModel.Builder.setListener(metrics);
+
+        try {
+            fitted = b.buildWithinTableBytes(TextModel.MAX_CODE_LENGTH, full
+                    .getTableBytes() / 2);
+        } finally {
+            TextModel.Builder.setListener(null);
+        }
+
+        // the probe builds are not reported
+        Assert.assertEquals(metrics.getModelsBuilt(), 1);
+        Assert.assertEquals(metrics.getLastModelSymbols(), fitted
+                .getDictionary().size());
+        Assert.assertTrue(small.getDictionary().size() <= budget);
+        Assert.assertTrue(small.getTableBytes() < full.getTableBytes());
+        Assert.assertTrue(fitted.getTableBytes() <= full.getTableBytes() / 2);
+        Assert.assertEquals(b.build(TextModel.MAX_CODE_LENGTH, 0)
+                .getDictionary().size(), b.getFreq(0).size());
+
+        long fullSize = 0;
+        long smallSize = 0;
+
+        for (String line : lines) {
+            byte[] enc = HuffmanCodec.encode(line.getBytes(), small);
+            Assert.assertEquals(new String(HuffmanCodec.decode(enc, small)),
+                    line);
+
+            fullSize += HuffmanCodec.encode(line.getBytes(), full).length;
+            smallSize += enc.length;
+        }
+
+        Assert.assertTrue(smallSize < fullSize * 1.15, smallSize + " vs "
+                + fullSize);
+    }
+
+    /**
+     * filelisting.freq holds the frequencies the context trie Builder
+     * produced for filelisting.txt, as "context symbol count" lines with the
+     * symbol in hex. The trie had no escape code.
+     */
+    public void testTrieFrequencies() {
+        List<String> lines = readLines("/filelisting.txt");
+        List<Map<Integer, Long>> expected = new ArrayList<Map<Integer, Long>>();
+
+        for (int context = 1; context <= 3; context++) {
+            expected.add(new TreeMap<Integer, Long>());
+        }
+
+        for (String entry : readLines("/filelisting.freq")) {
+            String[] fields = entry.split(" ");
+            expected.get(Integer.parseInt(fields[0]) - 1).put(
+                    Integer.parseInt(fields[1], 16), Long.valueOf(fields[2]));
+        }
+
+        for (int context = 1; context <= 3; context++) {
+            TextModel.Builder b = new TextModel.Builder(context);
+
+            for (String line : lines) {
+                b.scanLine(line);
+            }
+
+            Map<Integer, Long> actual = new TreeMap<Integer, Long>(
+                    b.getFreq());
+            Assert.assertNotNull(actual.remove(TextModel.ESCAPE));
+            Assert.assertEquals(actual, expected.get(context - 1),
+                    "context " + context);
+        }
+    }
+
+    public void testBulkScan() {
+        StringBuilder text = new StringBuilder();
+
+        for (String line : readLines("/filelisting.txt")) {
+            text.append(line).append('\n');
+        }
+
+        byte[] data = text.toString().getBytes();
+        Random random = new Random(3);
+
+        for (int context = 1; context <= 3; context++) {
+            TextModel.Builder single = new TextModel.Builder(context);
+            TextModel.Builder bulk = new TextModel.Builder(context);
+            int pos = 0;
+
+            for (byte b : data) {
+                single.scan(b & 0xFF);
+            }
+
+            while (pos < data.length) {
+                int n = Math.min(data.length - pos, random.nextInt(100));
+
+                if (random.nextBoolean()) {
+                    bulk.scan(data, pos, n);
+                } else {
+                    ByteBuffer buf = ByteBuffer.allocateDirect(n);
+                    buf.put(data, pos, n).flip();
+                    bulk.scan(buf);
+                }
+
+                pos += n;
+            }
+
+            Assert.assertEquals(bulk.getFreq(), single.getFreq());
+            Assert.assertEquals(bulk.build().getDictionary().keySet(), single
+                    .build().getDictionary().keySet());
+        }
+    }
+
+    public void testShardedTraining() throws Exception {
+        List<String> lines = readLines("/filelisting.txt");
+        StringBuilder text = new StringBuilder();
+
+        for (String line : lines) {
+            text.append(line).append('\n');
+        }
+
+        byte[] orig = text.toString().getBytes();
+        TextModel.Builder whole = new TextModel.Builder(3);
+        ParallelTrainer.scan(ByteBuffer.wrap(orig), whole);
+        Map<Integer, Long> expected = frequencies(whole.build());
+
+        for (int shardSize : new int[] { 1, 2, 7, 1000 }) {
+            TextModel.Builder merged = new TextModel.Builder(3);
+
+            for (int i = 0; i < orig.length; i += shardSize) {
+                TextModel.Builder shard = new TextModel.Builder(3);
+                ParallelTrainer.scan(ByteBuffer.wrap(orig, i,
+                        Math.min(shardSize, orig.length - i)), shard);
+                merged.merge(shard);
+            }
+
+            Assert.assertEquals(frequencies(merged.build()), expected,
+                    "shard " + shardSize);
+        }
+
+        File file = File.createTempFile("huff", ".txt");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(orig);
+        out.close();
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        TextModel.Builder trained = new ParallelTrainer(3, 512, pool)
+                .train(Arrays.asList(file, file));
+        pool.shutdown();
+
+        TextModel.Builder twice = new TextModel.Builder(3);
+        ParallelTrainer.scan(ByteBuffer.wrap(orig), twice);
+        ParallelTrainer.scan(ByteBuffer.wrap(orig), twice);
+
+        Assert.assertEquals(frequencies(trained.build()),
+                frequencies(twice.build()));
+    }
+
+    public void testSampledTraining() throws Exception {
+        List<String> lines = readLines("/filelisting.txt");
+        File file = File.createTempFile("huff", ".txt");
+        file.deleteOnExit();
+
+        FileOutputStream out = new FileOutputStream(file);
+        Random random = new Random(11);
+
+        // every run of lines shifts its letters by its own amount, so blocks
+        // held out differ from the blocks trained on
+        int shift = 0;
+
+        for (int i = 0; i < 40 * lines.size(); i++) {
+            if (i % 100 == 0) {
+                shift = random.nextInt(26);
+            }
+
+            char[] line = lines.get(random.nextInt(lines.size()))
+                    .toCharArray();
+
+            for (int j = 0; j < line.length; j++) {
+                if (line[j] >= 'a' && line[j] <= 'z') {
+                    line[j] = (char) ('a' + (line[j] - 'a' + shift) % 26);
+                }
+            }
+
+            out.write((new String(line) + "\n").getBytes());
+        }
+
+        out.close();
+
+        SamplingTrainer.Result result = new SamplingTrainer(3, 100000,
+                Integer.MAX_VALUE, 4096, 0.1, new Random(5)).train(Arrays
+                .asList(file));
+
+        Assert.assertTrue(result.getBytesScanned() >= 100000);
+        Assert.assertTrue(result.getBytesScanned() < 100000 + 4096);
+        Assert.assertTrue(result.getBytesHeldOut() > 0);
+        Assert.assertFalse(result.isMemoryLimited());
+        // the estimate tracks the model's actual loss on the whole corpus
+        byte[] all = Files.readAllBytes(file.toPath());
+        double actual = HuffmanCodec.encode(all, result.getModel()).length
+                * 8.0 / all.length / result.getProbeBitsPerByte() - 1.0;
+
+        Assert.assertTrue(result.getEstimatedError() > 0.01, result.toString());
+        Assert.assertEquals(result.getEstimatedError(), actual, 0.03, result
+                .toString());
+
+        for (String line : lines) {
+            Assert.assertEquals(new String(HuffmanCodec.decode(HuffmanCodec
+                    .encode(line.getBytes(), result.getModel()), result
+                    .getModel())), line);
+        }
+
+        SamplingTrainer.Result limited = new SamplingTrainer(3, 100000, 500,
+                4096, 0.1, new Random(5)).train(Arrays.asList(file));
+
+        Assert.assertTrue(limited.isMemoryLimited());
+        Assert.assertTrue(limited.getBytesScanned() < result.getBytesScanned());
+
+        // the contexts alone fit, but not with the held-out and probe copies
+        SamplingTrainer.Result copies = new SamplingTrainer(3, 100000, result
+                .getContexts() + 1, 4096, 0.1, new Random(5)).train(Arrays
+                .asList(file));
+
+        Assert.assertTrue(copies.isMemoryLimited());
+        Assert.assertTrue(copies.getBytesScanned() < result.getBytesScanned());
+    }
+
+    public void testModelFile() throws Exception {
+        List<String> lines = readLines("/filelisting.txt");
+        TextModel d = buildModel(lines, 3);
+
+        File file = File.createTempFile("huff", ".model");
+        file.deleteOnExit();
+        ModelFile.write(d, file);
+        TextModel loaded = ModelFile.load(file);
+
+        Assert.assertEquals(loaded.getContext(), d.getContext());
+        Assert.assertEquals(loaded.getMaxBits(), d.getMaxBits());
+        Assert.assertEquals(loaded.getDictionary().keySet(), d
+                .getDictionary().keySet());
+
+        // code strings and the decode map are built on first use
+        for (HuffCode code : d.getDictionary().values()) {
+            Assert.assertEquals(loaded.getDictionary().get(code.getSource())
+                    .getTargetString(), code.getTargetString());
+        }
+
+        Assert.assertEquals(loaded.getDecode().keySet(), d.getDecode()
+                .keySet());
+
+        for (String line : lines) {
+            byte[] enc = HuffmanCodec.encode(line.getBytes(), loaded);
+            Assert.assertEquals(enc, HuffmanCodec.encode(line.getBytes(), d));
+            Assert.assertEquals(new String(HuffmanCodec.decode(enc, loaded)),
+                    line);
+        }
+
+        ByteBuffer corrupt = ModelFile.toBuffer(d);
+        corrupt.put(100, (byte) (corrupt.get(100) ^ 1));
+
+        try {
+            ModelFile.read(corrupt);
+            Assert.fail("expected checksum failure");
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage().contains("checksum"));
+        }
+
+        Assert.assertEquals(ModelFile.toBuffer(d).getInt(4),
+                ModelFile.VERSION);
+
+        Map<Integer, Long> freq = new LinkedHashMap<Integer, Long>();
+        freq.put((int) 'a', 5L);
+        freq.put((int) 'b', 3L);
+        freq.put(TextModel.EOF, 1L);
+        TextModel plain = new TextModel(freq, 0L, 1);
+        ByteBuffer v1 = ModelFile.toBuffer(plain);
+
+        Assert.assertEquals(v1.getInt(4), ModelFile.VERSION_NO_ESCAPE);
+        Assert.assertEquals(new String(HuffmanCodec.decode(HuffmanCodec
+                .encode("abba".getBytes(), ModelFile.read(v1)), plain)),
+                "abba");
+    }
+
+    public void testRetraining() throws Exception {
+        List<String> lines = readLines("/filelisting.txt");
+        List<String> reversed = new ArrayList<String>();
+
+        for (String line : lines) {
+            reversed.add(new StringBuilder(line).reverse().toString());
+        }
+
+        File dir = File.createTempFile("huff", ".models");
+        dir.delete();
+
+        try {
+            final List<String> events = new ArrayList<String>();
+            final AtomicBoolean reject = new AtomicBoolean();
+            DirectoryModelLoader store = new DirectoryModelLoader(dir);
+            store.save(3, buildModel(reversed, 3));
+
+            RetrainingCodec codec = new RetrainingCodec(store,
+                    new ModelRegistry(store), 3, new Executor() {
+                public void execute(Runnable command) {
+                    if (reject.get()) {
+                        throw new RejectedExecutionException();
+                    }
+
+                    command.run();
+                }
+            }, 1, 5000, 0.3, 0, 1, new RetrainListener() {
+                public void published(int id, int version, double oldRatio,
+                        double newRatio) {
+                    events.add("published " + version);
+                    Assert.assertTrue(newRatio * 1.3 < oldRatio);
+                }
+
+                public void rejected(int id, double oldRatio, double newRatio) {
+                    events.add("rejected");
+                    Assert.assertTrue(newRatio * 1.3 >= oldRatio);
+                }
+
+                public void failed(int id, Exception e) {
+                    events.add("failed " + e);
+                }
+            });
+            List<byte[]> encoded = new ArrayList<byte[]>();
+
+            for (String line : reversed) {
+                encoded.add(codec.encode(line.getBytes()));
+            }
+
+            Assert.assertEquals(codec.version(), 1);
+            Assert.assertTrue(events.isEmpty());
+
+            for (String line : lines) {
+                encoded.add(codec.encode(line.getBytes()));
+            }
+
+            int version = codec.version();
+
+            Assert.assertTrue(version > 1);
+            Assert.assertEquals(store.latest(3), version);
+            Assert.assertTrue(events.contains("published " + version));
+
+            // the traffic has not changed, so a new candidate is no better
+            for (String line : lines) {
+                encoded.add(codec.encode(line.getBytes()));
+            }
+
+            // a rejected build neither wedges the codec nor loses the sample
+            events.clear();
+            reject.set(true);
+            Assert.assertFalse(codec.retrain());
+            Assert.assertEquals(events, Arrays.asList("failed "
+                    + new RejectedExecutionException()));
+
+            events.clear();
+            reject.set(false);
+            Assert.assertTrue(codec.retrain());
+            Assert.assertEquals(events, Arrays.asList("rejected"));
+            Assert.assertEquals(codec.version(), version);
+
+            // only the latest version is retained
+            for (int i = 0; i < encoded.size(); i++) {
+                int n = i % lines.size();
+                String line = (i < reversed.size()) ? reversed.get(n) : lines
+                        .get(n);
+
+                if (ModelRegistry.modelVersion(encoded.get(i), 0) == version) {
+                    Assert.assertEquals(
+                            new String(codec.decode(encoded.get(i))), line);
+                } else {
+                    try {
+                        codec.decode(encoded.get(i));
+                        Assert.fail();
+                    } catch (IOException expected) {
+                    }
+                }
+            }
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    public void testModelRegistry() throws Exception {
+        List<String> lines = readLines("/filelisting.txt");
+        File dir = File.createTempFile("huff", ".models");
+        dir.delete();
+
+        try {
+            final DirectoryModelLoader store = new DirectoryModelLoader(dir);
+            Assert.assertEquals(store.save(7, buildModel(lines, 2)), 1);
+            Assert.assertEquals(store.save(7, buildModel(lines, 3)), 2);
+            Assert.assertEquals(store.save(9, buildModel(lines, 1)), 1);
+
+            final AtomicInteger loads = new AtomicInteger();
+            ModelLoader counting = new ModelLoader() {
+                public TextModel load(int id, int version) throws IOException {
+                    loads.incrementAndGet();
+
+                    return store.load(id, version);
+                }
+            };
+            long budget = store.load(7, 2).getTableBytes()
+                    + store.load(9, 1).getTableBytes();
+            ModelRegistry registry = new ModelRegistry(counting, budget);
+
+            byte[] a = registry.encode(7, 1, lines.get(0).getBytes());
+            byte[] b = registry.encode(7, 2, lines.get(1).getBytes());
+            byte[] c = registry.encode(9, 1, lines.get(2).getBytes());
+
+            Assert.assertEquals(loads.get(), 3);
+            Assert.assertEquals(registry.size(), 2);
+            Assert.assertEquals(registry.tableBytes(), budget);
+            Assert.assertEquals(ModelRegistry.modelId(b, 0), 7);
+            Assert.assertEquals(ModelRegistry.modelVersion(b, 0), 2);
+
+            Assert.assertEquals(new String(registry.decode(c)), lines.get(2));
+            Assert.assertEquals(new String(registry.decode(b)), lines.get(1));
+            Assert.assertEquals(loads.get(), 3);
+            Assert.assertEquals(new String(registry.decode(a)), lines.get(0));
+            Assert.assertEquals(loads.get(), 4);
+            Assert.assertTrue(registry.tableBytes() <= budget
+                    || registry.size() == 1);
+
+            registry.evict(7, 1);
+            Assert.assertTrue(registry.tableBytes() < budget);
+
+            // truncated, overlong and out-of-range headers
+            byte[][] corrupt = { new byte[0], new byte[] { 7 },
+                    new byte[] { (byte) 0x87 }, new byte[] { 7, (byte) 0x82 },
+                    new byte[] { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+                            (byte) 0xFF, 0x0F, 1 },
+                    new byte[] { 7, (byte) 0x80, (byte) 0x80, (byte) 0x80,
+                            (byte) 0x80, (byte) 0x80, 1 } };
+
+            for (byte[] payload : corrupt) {
+                try {
+                    registry.decode(payload);
+                    Assert.fail("expected corrupt header");
+                } catch (HuffmanEncodingException e) {
+                    Assert.assertTrue(e.getMessage().contains("header"));
+                }
+            }
+
+            try {
+                registry.decode(b, 0, 1);
+                Assert.fail("expected truncated header");
+            } catch (HuffmanEncodingException e) {
+                Assert.assertTrue(e.getMessage().contains("header"));
+            }
+
+            try {
+                ModelRegistry.modelVersion(new byte[] { 7 }, 0);
+                Assert.fail("expected truncated header");
+            } catch (HuffmanEncodingException e) {
+                Assert.assertTrue(e.getMessage().contains("header"));
+            }
+
+            try {
+                ModelRegistry.encode(-1, 1, store.load(7, 1), a, 0, a.length);
+                Assert.fail("expected negative id");
+            } catch (IllegalArgumentException e) {
+                Assert.assertTrue(e.getMessage().contains("negative"));
+            }
+
+            try {
+                registry.get(7, 3);
+                Assert.fail("expected missing model");
+            } catch (FileNotFoundException e) {
+                Assert.assertTrue(registry.size() <= 2);
+            }
+
+            // concurrent requests share one load
+            final ModelRegistry shared = new ModelRegistry(counting);
+            ExecutorService pool = Executors.newFixedThreadPool(8);
+            List<Future<TextModel>> results = new ArrayList<Future<TextModel>>();
+
+            loads.set(0);
+
+            try {
+                for (int i = 0; i < 64; i++) {
+                    results.add(pool.submit(new Callable<TextModel>() {
+                        public TextModel call() throws IOException {
+                            return shared.get(9, 1);
+                        }
+                    }));
+                }
+
+                for (Future<TextModel> result : results) {
+                    Assert.assertSame(result.get(), results.get(0).get());
+                }
+            } finally {
+                pool.shutdown();
+            }
+
+            Assert.assertEquals(loads.get(), 1);
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    private static Map<Integer, Long> frequencies(TextModel d) {
+        Map<Integer, Long> freq = new TreeMap<Integer, Long>();
+
+        for (HuffCode code : d.getDictionary().values()) {
+            freq.put(code.getSource(), code.getFrequency());
+        }
+
+        return freq;
+    }
+
+    public static TextModel buildModel(List<String> lines, int context) {
+        TextModel.Builder b = new TextModel.Builder(context);
+
+        for (String line : lines) {
+            b.scanLine(line);
+        }
+
+        return b.build();
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+
+        file.delete();
+    }
+
+    public static List<String> readLines(String resource) {
+        List<String> lines = new ArrayList<String>();
+        Scanner scan = new Scanner(
+                HuffmanCodecTest.class.getResourceAsStream(resource));
+
+        while (scan.hasNextLine()) {
+            lines.add(scan.nextLine());
+        }
+
+        return lines;
+    }
+}